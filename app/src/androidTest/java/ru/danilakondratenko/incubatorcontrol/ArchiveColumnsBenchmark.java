@@ -0,0 +1,118 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compression ratio and decode speed of archive format v2 on a year of
+ * synthetic 2-second records, generated and encoded day by day in memory.
+ * Results go to logcat.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ArchiveColumnsBenchmark {
+    private static final String LOG_TAG = "ArchiveColumnsBenchmark";
+
+    private static final long PERIOD = 2000L;
+    private static final int DAYS = 365;
+    private static final int RECORDS_PER_DAY = (int)(86400000L / PERIOD);
+
+    private static void generateDay(Random random, int day, ByteBuffer out) {
+        long base = 1600000000000L + day * 86400000L;
+
+        for (int i = 0; i < RECORDS_PER_DAY; i++) {
+            long n = (long) day * RECORDS_PER_DAY + i;
+            int offset = i * Archiver.RECORD_SIZE;
+
+            /* Sensors report 0.1 degree and 0.1 percent steps */
+            double temp = Math.round(
+                    (37.7 + 0.3 * Math.sin(n / 900.0) + random.nextGaussian() * 0.03) * 10) / 10.0;
+            double humid = Math.round(
+                    (55 + 3 * Math.sin(n / 5000.0) + random.nextGaussian() * 0.05) * 10) / 10.0;
+            boolean heater = Math.sin(n / 900.0) < 0;
+            boolean wetter = Math.sin(n / 5000.0) < -0.5;
+            int chamber = ((n / 3600) % 2 == 0) ? -1 : 1;
+
+            byte st = heater ? Archiver.ST_HEATER : Archiver.ST_ZERO;
+            st |= wetter ? Archiver.ST_WETTER : Archiver.ST_ZERO;
+            st |= ((byte) chamber << Archiver.ST_CHAMBER_SHIFT) & Archiver.ST_CHAMBER;
+            st |= Archiver.ST_POWER;
+
+            out.putLong(offset + Archiver.TIMESTAMP, base + i * PERIOD + random.nextInt(40));
+            out.putShort(offset + Archiver.CUR_TEMP, (short)(temp * 256));
+            out.putShort(offset + Archiver.CUR_HUMID, (short)(humid * 256));
+            out.put(offset + Archiver.ST, st);
+            out.put(offset + Archiver.NEEDED_TEMP, (byte)(378 - 360));
+            out.put(offset + Archiver.NEEDED_HUMID, (byte) 55);
+            out.put(offset + Archiver.ER, (random.nextInt(100000) == 0)
+                    ? Archiver.ER_NO_INTERNET : Archiver.ER_ZERO);
+        }
+    }
+
+    @Test
+    public void yearOfSyntheticData() {
+        Random random = new Random(42);
+        ByteBuffer raw = ByteBuffer.allocate(RECORDS_PER_DAY * Archiver.RECORD_SIZE);
+        ByteBuffer encoded = ByteBuffer.allocate(
+                ArchiveColumns.BLOCK_HEADER_SIZE + ArchiveColumns.COLUMNS
+                        + ArchiveColumns.BLOCK_RECORDS * ArchiveColumns.COLUMNS * 20);
+        ArchiveColumns.Block block = new ArchiveColumns.Block();
+        ByteBuffer check = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+
+        long rawBytes = 0, v2Bytes = 0, records = 0;
+        long fullNanos = 0, tempNanos = 0;
+
+        for (int day = 0; day < DAYS; day++) {
+            generateDay(random, day, raw);
+
+            for (int first = 0; first < RECORDS_PER_DAY; first += ArchiveColumns.BLOCK_RECORDS) {
+                int count = Math.min(ArchiveColumns.BLOCK_RECORDS, RECORDS_PER_DAY - first);
+
+                encoded.clear();
+                int length = ArchiveColumns.encodeBlock(
+                        raw, first * Archiver.RECORD_SIZE, count, encoded);
+
+                rawBytes += (long) count * Archiver.RECORD_SIZE;
+                v2Bytes += length;
+                records += count;
+
+                long start = System.nanoTime();
+                encoded.position(0);
+                ArchiveColumns.decodeBlock(encoded, ArchiveColumns.COL_ALL, block);
+                fullNanos += System.nanoTime() - start;
+
+                for (int i = 0; i < count; i += 97) {
+                    block.toRecord(i, check, 0);
+                    for (int j = 0; j < Archiver.RECORD_SIZE; j++)
+                        assertEquals(raw.get((first + i) * Archiver.RECORD_SIZE + j), check.get(j));
+                }
+
+                start = System.nanoTime();
+                encoded.position(0);
+                ArchiveColumns.decodeBlock(encoded,
+                        ArchiveColumns.COL_TIMESTAMP | ArchiveColumns.COL_CUR_TEMP, block);
+                tempNanos += System.nanoTime() - start;
+            }
+        }
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "Archive v2: %d records, v1 %.1f MB, v2 %.1f MB, ratio %.2f",
+                records, rawBytes / 1e6, v2Bytes / 1e6, (double) rawBytes / v2Bytes));
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "Decode all columns: %.1f M records/s, timestamp and temperature: %.1f M records/s",
+                records * 1e3 / fullNanos, records * 1e3 / tempNanos));
+
+        assertTrue(v2Bytes * 4 < rawBytes);
+    }
+}
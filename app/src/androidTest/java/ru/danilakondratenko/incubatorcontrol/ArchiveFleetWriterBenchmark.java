@@ -0,0 +1,218 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sustained ingestion of 512 simulated incubators polled every 2 seconds,
+ * replayed faster than real time by 8 producer threads: 100 times for
+ * throughput, 10 times for commits as in real time. Archives are created by
+ * a first round written before the clock starts. Every record must reach
+ * its archive with open files staying within the limit. Results go to logcat.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ArchiveFleetWriterBenchmark {
+    private static final String LOG_TAG = "ArchiveFleetWriterBenchmark";
+
+    private static final int INCUBATORS = 512;
+    private static final int PRODUCERS = 8;
+    private static final long PERIOD = 2000L;
+    private static final int SPEEDUP = 100;
+    /* Opening files takes as long at any speed, so commit regime is replayed slower */
+    private static final int REAL_TIME_SPEEDUP = 10;
+    private static final int ROUNDS = 450; /* 15 minutes of records */
+    private static final long START = 1600000000000L;
+
+    /* Wall time of last ingest() and commits of its first round */
+    private long elapsed;
+    private long initialCommits;
+
+    private Context getContext() {
+        return InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    private static String getAddress(int incubator) {
+        return "10.0." + (incubator / 256) + "." + (incubator % 256) + ":80";
+    }
+
+    private static void generate(ByteBuffer bb, Random random, int incubator, int round) {
+        double temp = 37.7 + 0.3 * Math.sin((round + incubator) / 90.0)
+                + random.nextGaussian() * 0.03;
+        double humid = 55 + 3 * Math.sin((round + incubator) / 500.0)
+                + random.nextGaussian() * 0.05;
+
+        bb.putLong(Archiver.TIMESTAMP, START + round * PERIOD + random.nextInt(40));
+        bb.putShort(Archiver.CUR_TEMP, (short)(temp * 256));
+        bb.putShort(Archiver.CUR_HUMID, (short)(humid * 256));
+        bb.put(Archiver.ST, (byte)(Archiver.ST_POWER | ((temp < 37.7) ? Archiver.ST_HEATER : 0)));
+        bb.put(Archiver.NEEDED_TEMP, (byte)(378 - 360));
+        bb.put(Archiver.NEEDED_HUMID, (byte) 55);
+        bb.put(Archiver.ER, Archiver.ER_ZERO);
+    }
+
+    /* Offers records of incubators [first, first + count) from round 1 on schedule */
+    private static Thread startProducer(final ArchiveFleetWriter writer, final int first,
+                                        final int count, final long begin,
+                                        final int speedup) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(first);
+                ByteBuffer record = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+
+                for (int round = 1; round < ROUNDS; round++) {
+                    long due = begin + (round - 1) * PERIOD / speedup;
+                    long now;
+                    while ((now = System.currentTimeMillis()) < due) {
+                        try {
+                            Thread.sleep(due - now);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+
+                    for (int i = first; i < first + count; i++) {
+                        generate(record, random, i, round);
+                        writer.offer(getAddress(i), record, 0);
+                    }
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /* Replays all rounds into filesDir, statistics of returned writer stay readable */
+    private ArchiveFleetWriter ingest(File filesDir, int speedup, long commitInterval)
+            throws Exception {
+        ArchiveFleetWriter writer = new ArchiveFleetWriter(filesDir,
+                ArchiveFleetWriter.DEFAULT_CAPACITY, ArchiveFleetWriter.DEFAULT_MAX_OPEN,
+                ArchiveFleetWriter.DEFAULT_COMMIT_RECORDS, commitInterval);
+
+        try {
+            Random random = new Random(0);
+            ByteBuffer record = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+            for (int i = 0; i < INCUBATORS; i++) {
+                generate(record, random, i, 0);
+                assertTrue(writer.offer(getAddress(i), record, 0));
+            }
+            writer.flush();
+            initialCommits = writer.getCommits();
+
+            long begin = System.currentTimeMillis();
+            Thread[] producers = new Thread[PRODUCERS];
+            int share = INCUBATORS / PRODUCERS;
+            for (int i = 0; i < PRODUCERS; i++)
+                producers[i] = startProducer(writer, i * share, share, begin, speedup);
+            for (Thread producer : producers)
+                producer.join();
+            writer.flush();
+            elapsed = System.currentTimeMillis() - begin;
+        } finally {
+            writer.close();
+        }
+
+        long expected = (long) INCUBATORS * ROUNDS;
+        assertEquals(INCUBATORS, writer.getIncubatorCount());
+        assertEquals(0, writer.getRecordsDropped());
+        assertEquals(0, writer.getWriteErrors());
+        assertEquals(expected, writer.getRecordsWritten());
+        assertTrue(writer.getOpenFiles() <= ArchiveFleetWriter.DEFAULT_MAX_OPEN);
+
+        List<ArchiveRegistry.Incubator> incubators =
+                ArchiveRegistry.open(filesDir).getIncubators();
+        assertEquals(INCUBATORS, incubators.size());
+        for (ArchiveRegistry.Incubator incubator : incubators) {
+            ArchiveSegments segments = ArchiveSegments.open(
+                    new File(filesDir, incubator.directory), null);
+            assertEquals(ROUNDS, new FlatArchiveStore(segments).count(
+                    Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+        return writer;
+    }
+
+    private void log(String name, ArchiveFleetWriter writer) {
+        long records = (long) INCUBATORS * (ROUNDS - 1);
+        long commits = writer.getCommits() - initialCommits;
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%s: %d incubators, %d records in %.1f s, %.0f records/s"
+                        + " (%.0f needed in real time)",
+                name, writer.getIncubatorCount(), records, elapsed / 1e3,
+                records * 1e3 / elapsed, INCUBATORS * 1e3 / PERIOD));
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%s: commits %d, %.1f records each, file opens %d, evictions %d"
+                        + " (%.1f per real time second), max queue depth %d,"
+                        + " max latency %.1f ms",
+                name, commits, (double) records / commits, writer.getOpens(),
+                writer.getEvictions(), writer.getEvictions() * 1e3 / ((ROUNDS - 1) * PERIOD),
+                writer.getMaxDepth(), writer.getMaxLatency() / 1e6));
+    }
+
+    /* Commits are driven by record count, since interval is not reached at this speed */
+    @Test
+    public void fleetIngestion() throws Exception {
+        File filesDir = new File(getContext().getCacheDir(), "fleet-benchmark");
+        deleteRecursively(filesDir);
+        filesDir.mkdirs();
+
+        try {
+            ArchiveFleetWriter writer = ingest(filesDir, SPEEDUP,
+                    ArchiveFleetWriter.DEFAULT_COMMIT_INTERVAL);
+            log("Throughput", writer);
+
+            /* Schedule was kept, so ingestion keeps up with 100 times the real rate */
+            assertTrue(elapsed < (ROUNDS - 1) * PERIOD / SPEEDUP * 3 / 2);
+        } finally {
+            deleteRecursively(filesDir);
+        }
+    }
+
+    /*
+     * Replayed 10 times faster with commit interval shortened as much, so
+     * commits hold as many records and evict as many files as in real time.
+     */
+    @Test
+    public void realTimeCommits() throws Exception {
+        File filesDir = new File(getContext().getCacheDir(), "fleet-benchmark-real-time");
+        deleteRecursively(filesDir);
+        filesDir.mkdirs();
+
+        try {
+            ArchiveFleetWriter writer = ingest(filesDir, REAL_TIME_SPEEDUP,
+                    ArchiveFleetWriter.DEFAULT_COMMIT_INTERVAL / REAL_TIME_SPEEDUP);
+            log("Real time", writer);
+
+            long records = (long) INCUBATORS * (ROUNDS - 1);
+            long commits = writer.getCommits() - initialCommits;
+            assertTrue(records >= commits * (ArchiveFleetWriter.DEFAULT_COMMIT_RECORDS / 4));
+            assertTrue(writer.getEvictions() <= writer.getCommits());
+        } finally {
+            deleteRecursively(filesDir);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares archive stores on the device: append throughput, range query
+ * latency and size on disk for a day, a month and a year of records.
+ * Data and queries are generated from fixed seeds, results go to logcat.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ArchiveStoreBenchmark {
+    private static final String LOG_TAG = "ArchiveStoreBenchmark";
+
+    /* Backends compared */
+    private static final int STORE_FLAT = 0;   /* Segment files, see ArchiveSegments */
+    private static final int STORE_SQLITE = 1; /* SQLite database in WAL mode */
+
+    /* Incubator is polled every 2 seconds */
+    private static final long PERIOD = 2000L;
+    private static final long START = 1600000000000L;
+
+    private static final long HOUR = 3600000L;
+    private static final long DAY = 24 * HOUR;
+
+    private static final int QUERIES = 50;
+
+    private static final int DAY_RECORDS = (int)(DAY / PERIOD);
+    private static final int MONTH_RECORDS = 30 * DAY_RECORDS;
+    private static final int YEAR_RECORDS = 365 * DAY_RECORDS;
+
+    private Context getContext() {
+        return InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    private ArchiveStore openStore(int type, File dir) throws IOException {
+        if (type == STORE_SQLITE)
+            return new SQLiteArchiveStore(new File(dir, SQLiteArchiveStore.DATABASE_NAME));
+        return new FlatArchiveStore(ArchiveSegments.open(
+                new File(dir, Archiver.ARCHIVE_DIR_NAME),
+                new File(dir, Archiver.ARCHIVE_FILE_NAME)));
+    }
+
+    private static void generate(ByteBuffer bb, Random random, int i) {
+        double temp = 37.7 + 0.3 * Math.sin(i / 900.0) + random.nextGaussian() * 0.03;
+        double humid = 55 + 3 * Math.sin(i / 5000.0) + random.nextGaussian() * 0.05;
+        byte st = (Math.sin(i / 900.0) < 0) ? Archiver.ST_HEATER : Archiver.ST_ZERO;
+
+        bb.putLong(Archiver.TIMESTAMP, START + i * PERIOD);
+        bb.putShort(Archiver.CUR_TEMP, (short)(temp * 256));
+        bb.putShort(Archiver.CUR_HUMID, (short)(humid * 256));
+        bb.put(Archiver.ST, (byte)(st | Archiver.ST_POWER));
+        bb.put(Archiver.NEEDED_TEMP, (byte)(378 - 360));
+        bb.put(Archiver.NEEDED_HUMID, (byte) 55);
+        bb.put(Archiver.ER, Archiver.ER_ZERO);
+    }
+
+    /* Median latency of random queries of given span in microseconds */
+    private static long measureQueries(ArchiveStore store, int records, long span)
+            throws IOException {
+        Random random = new Random(span);
+        long end = START + records * PERIOD;
+        long[] latencies = new long[QUERIES];
+
+        for (int i = 0; i < QUERIES; i++) {
+            long mintime = START + (long)(random.nextDouble() * Math.max(0, end - START - span));
+            long maxtime = mintime + span;
+
+            long t0 = System.nanoTime();
+            ArchiveSeries series = store.query(mintime, maxtime);
+            latencies[i] = (System.nanoTime() - t0) / 1000;
+
+            assertEquals(Math.min(span, end - mintime) / PERIOD, series.size());
+        }
+
+        Arrays.sort(latencies);
+        return latencies[QUERIES / 2];
+    }
+
+    private void run(int type, int records) throws IOException {
+        File dir = new File(getContext().getCacheDir(),
+                "archive-benchmark-" + type + "-" + records);
+        deleteRecursively(dir);
+        dir.mkdirs();
+
+        try {
+            ArchiveStore store = openStore(type, dir);
+            try {
+                ByteBuffer bb = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+                Random random = new Random(42);
+
+                long t0 = System.nanoTime();
+                for (int i = 0; i < records; i++) {
+                    generate(bb, random, i);
+                    store.append(bb, 0);
+                }
+                store.flush();
+                long appendNanos = System.nanoTime() - t0;
+
+                assertEquals(records, store.count(Long.MIN_VALUE, Long.MAX_VALUE));
+
+                long hourQuery = measureQueries(store, records, HOUR);
+                long dayQuery = measureQueries(store, records, DAY);
+                long size = store.getSize();
+
+                Log.i(LOG_TAG, String.format(Locale.US,
+                        "%s, %d records: append %.0f records/s, "
+                                + "query 1 h %d us, query 1 d %d us, size %d bytes (%.1f per record)",
+                        (type == STORE_SQLITE) ? "sqlite" : "flat", records,
+                        records * 1e9 / appendNanos, hourQuery, dayQuery,
+                        size, (double) size / records));
+            } finally {
+                store.close();
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void day() throws IOException {
+        run(STORE_FLAT, DAY_RECORDS);
+        run(STORE_SQLITE, DAY_RECORDS);
+    }
+
+    @Test
+    public void month() throws IOException {
+        run(STORE_FLAT, MONTH_RECORDS);
+        run(STORE_SQLITE, MONTH_RECORDS);
+    }
+
+    @Test
+    public void year() throws IOException {
+        run(STORE_FLAT, YEAR_RECORDS);
+        run(STORE_SQLITE, YEAR_RECORDS);
+    }
+}
@@ -0,0 +1,213 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Archive in SQLite database. Journal is in WAL mode, so that readers do not
+ * block the writer, and records are inserted in batches, one transaction each.
+ */
+public class SQLiteArchiveStore implements ArchiveStore {
+    public static final String DATABASE_EXTENSION = ".db";
+    public static final String DATABASE_NAME = Archiver.ARCHIVE_DIR_NAME + DATABASE_EXTENSION;
+
+    /* Batch defaults */
+    public static final int DEFAULT_BATCH_RECORDS = 256;
+    public static final long DEFAULT_BATCH_INTERVAL = ArchiveWriter.DEFAULT_COMMIT_INTERVAL;
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS records ("
+            + "timestamp INTEGER NOT NULL, "
+            + "cur_temp INTEGER NOT NULL, "
+            + "cur_humid INTEGER NOT NULL, "
+            + "st INTEGER NOT NULL, "
+            + "needed_temp INTEGER NOT NULL, "
+            + "needed_humid INTEGER NOT NULL, "
+            + "er INTEGER NOT NULL)";
+    private static final String CREATE_INDEX =
+            "CREATE INDEX IF NOT EXISTS records_timestamp ON records (timestamp)";
+    private static final String INSERT = "INSERT INTO records "
+            + "(timestamp, cur_temp, cur_humid, st, needed_temp, needed_humid, er) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT = "SELECT "
+            + "timestamp, cur_temp, cur_humid, st, needed_temp, needed_humid, er "
+            + "FROM records WHERE timestamp >= ? AND timestamp < ? ORDER BY timestamp";
+    private static final String COUNT =
+            "SELECT COUNT(*) FROM records WHERE timestamp >= ? AND timestamp < ?";
+
+    /* Files of database besides main one */
+    private static final String[] FILE_SUFFIXES = { "", "-wal", "-shm", "-journal" };
+
+    private final File file;
+    private final int batchRecords;
+    private final long batchInterval;
+
+    private SQLiteDatabase db;
+    private SQLiteStatement insert;
+
+    /* Records waiting for next transaction */
+    private final ByteBuffer pending;
+    private int pendingCount = 0;
+    private long lastCommitTime;
+
+    SQLiteArchiveStore(File file) throws IOException {
+        this(file, DEFAULT_BATCH_RECORDS, DEFAULT_BATCH_INTERVAL);
+    }
+
+    SQLiteArchiveStore(File file, int batchRecords, long batchInterval) throws IOException {
+        if (batchRecords < 1)
+            batchRecords = 1;
+
+        this.file = file;
+        this.batchRecords = batchRecords;
+        this.batchInterval = batchInterval;
+        this.pending = ByteBuffer.allocate(batchRecords * Archiver.RECORD_SIZE);
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+
+        try {
+            db = SQLiteDatabase.openOrCreateDatabase(file, null);
+            db.enableWriteAheadLogging();
+            db.execSQL(CREATE_TABLE);
+            db.execSQL(CREATE_INDEX);
+            insert = db.compileStatement(INSERT);
+        } catch (SQLiteException e) {
+            if (db != null)
+                db.close();
+            throw new IOException(e);
+        }
+        this.lastCommitTime = System.currentTimeMillis();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void append(ByteBuffer bb, int offset) throws IOException {
+        if (db == null)
+            throw new IOException("Archive database is closed");
+
+        int position = pendingCount * Archiver.RECORD_SIZE;
+        pending.putLong(position, bb.getLong(offset));
+        pending.putLong(position + 8, bb.getLong(offset + 8));
+        pendingCount++;
+
+        if (pendingCount >= batchRecords
+                || System.currentTimeMillis() - lastCommitTime >= batchInterval)
+            flush();
+    }
+
+    /* Inserts pending records in one transaction */
+    @Override
+    public synchronized void flush() throws IOException {
+        lastCommitTime = System.currentTimeMillis();
+        if (pendingCount == 0 || db == null)
+            return;
+
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                for (int i = 0; i < pendingCount; i++) {
+                    int offset = i * Archiver.RECORD_SIZE;
+                    insert.bindLong(1, pending.getLong(offset + Archiver.TIMESTAMP));
+                    insert.bindLong(2, pending.getShort(offset + Archiver.CUR_TEMP));
+                    insert.bindLong(3, pending.getShort(offset + Archiver.CUR_HUMID));
+                    insert.bindLong(4, pending.get(offset + Archiver.ST));
+                    insert.bindLong(5, pending.get(offset + Archiver.NEEDED_TEMP));
+                    insert.bindLong(6, pending.get(offset + Archiver.NEEDED_HUMID));
+                    insert.bindLong(7, pending.get(offset + Archiver.ER));
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            throw new IOException(e);
+        }
+        pendingCount = 0;
+    }
+
+    private static String[] rangeArgs(long mintime, long maxtime) {
+        return new String[] { Long.toString(mintime), Long.toString(maxtime) };
+    }
+
+    @Override
+    public ArchiveSeries query(long mintime, long maxtime) throws IOException {
+        SQLiteDatabase current;
+        synchronized (this) {
+            current = db;
+        }
+        if (current == null)
+            throw new IOException("Archive database is closed");
+
+        try {
+            Cursor cursor = current.rawQuery(SELECT, rangeArgs(mintime, maxtime));
+            try {
+                ArchiveSeries result = new ArchiveSeries(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    result.add(cursor.getLong(0),
+                            cursor.getShort(1),
+                            cursor.getShort(2),
+                            (byte) cursor.getInt(3),
+                            (byte) cursor.getInt(4),
+                            (byte) cursor.getInt(5),
+                            (byte) cursor.getInt(6));
+                }
+                return result;
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public long count(long mintime, long maxtime) throws IOException {
+        SQLiteDatabase current;
+        synchronized (this) {
+            current = db;
+        }
+        if (current == null)
+            throw new IOException("Archive database is closed");
+
+        try {
+            return DatabaseUtils.longForQuery(current, COUNT, rangeArgs(mintime, maxtime));
+        } catch (SQLiteException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public long getSize() {
+        long size = 0;
+        for (String suffix : FILE_SUFFIXES)
+            size += new File(file.getPath() + suffix).length();
+        return size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (db == null)
+            return;
+
+        try {
+            flush();
+        } finally {
+            insert.close();
+            db.close();
+            insert = null;
+            db = null;
+        }
+    }
+}
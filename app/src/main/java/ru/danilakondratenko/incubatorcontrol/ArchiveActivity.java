@@ -3,16 +3,22 @@ package ru.danilakondratenko.incubatorcontrol;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.preference.PreferenceManager;
 
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Color;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Spinner;
+import android.widget.Toast;
 
 import com.jjoe64.graphview.GraphView;
 import com.jjoe64.graphview.LegendRenderer;
@@ -20,6 +26,8 @@ import com.jjoe64.graphview.helper.DateAsXAxisLabelFormatter;
 import com.jjoe64.graphview.series.DataPoint;
 import com.jjoe64.graphview.series.LineGraphSeries;
 
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -55,6 +63,9 @@ public class ArchiveActivity extends AppCompatActivity {
     public static final double HEATER_OFF    = 0;
     public static final double HEATER_ON     = HEATER_OFF + HEATER_HEIGHT;
 
+    public static final double ERROR_OFF = 0;
+    public static final double ERROR_ON  = ERROR_OFF + HEATER_HEIGHT / 2;
+
     public static final double CHAMBER_HEIGHT  = 1;
     public static final double CHAMBER_NEUTRAL = 0;
     public static final double CHAMBER_LEFT    = CHAMBER_NEUTRAL - CHAMBER_HEIGHT;
@@ -65,6 +76,16 @@ public class ArchiveActivity extends AppCompatActivity {
     public static final int NUM_VERTICAL = 5;
     public static final int NUM_HORIZONTAL = 3;
 
+    /* Events marked on temperature graph */
+    public static final String ERROR_EVENTS = "OVERHEAT OR CHAMBER_ERROR";
+
+    /* Least number of points on graph before rollups are used */
+    public static final int ROLLUP_POINTS = 300;
+
+    /* Export request codes */
+    private static final int REQUEST_EXPORT_CSV = 1;
+    private static final int REQUEST_EXPORT_BINARY = 2;
+
     private static final String LOG_TAG = "Archive";
 
     public static final String DEFAULT_INCUBATOR_ADDRESS = "incubator.local";
@@ -75,6 +96,7 @@ public class ArchiveActivity extends AppCompatActivity {
     LineGraphSeries<DataPoint> currentTempSeries;
     LineGraphSeries<DataPoint> neededTempSeries;
     LineGraphSeries<DataPoint> heaterSeries;
+    LineGraphSeries<DataPoint> errorSeries;
 
     GraphView gvHumidGraph;
     LineGraphSeries<DataPoint> currentHumidSeries;
@@ -94,6 +116,11 @@ public class ArchiveActivity extends AppCompatActivity {
 
     String incubatorAddress = DEFAULT_INCUBATOR_ADDRESS;
     private boolean cloudArchiveMode = false;
+    private boolean hybridArchiveMode = false;
+
+    private volatile boolean exportCancelled = false;
+    /* Counts scans on UI thread, results of an older background scan are dropped */
+    private int scanGeneration = 0;
 
     float clearFloat(float x) {
         short xa = (short)(x * 256);
@@ -138,6 +165,12 @@ public class ArchiveActivity extends AppCompatActivity {
         return result;
     }
 
+    private void setGraphBounds(GraphView graph, long min_time, long max_time) {
+        graph.getViewport().setXAxisBoundsManual(true);
+        graph.getViewport().setMinX(min_time);
+        graph.getViewport().setMaxX(max_time);
+    }
+
     private void setTempGraphData(
             ArrayList<DataPoint> alCurrentTemps, ArrayList<DataPoint> alNeededTemps,
             ArrayList<DataPoint> alHeaterStates, long min_time, long max_time) {
@@ -154,9 +187,7 @@ public class ArchiveActivity extends AppCompatActivity {
         neededTempSeries.resetData(dpaNeededTemps);
         heaterSeries.resetData(dpaHeaterStates);
 
-        gvTempGraph.getViewport().setXAxisBoundsManual(true);
-        gvTempGraph.getViewport().setMinX(min_time);
-        gvTempGraph.getViewport().setMaxX(max_time);
+        setGraphBounds(gvTempGraph, min_time, max_time);
     }
 
     private void setHumidGraphData(
@@ -174,9 +205,7 @@ public class ArchiveActivity extends AppCompatActivity {
         neededHumidSeries.resetData(dpaNeededHumids);
         wetterSeries.resetData(dpaWetterStates);
 
-        gvHumidGraph.getViewport().setXAxisBoundsManual(true);
-        gvHumidGraph.getViewport().setMinX(min_time);
-        gvHumidGraph.getViewport().setMaxX(max_time);
+        setGraphBounds(gvHumidGraph, min_time, max_time);
     }
 
     private void setChamberGraphData(
@@ -187,12 +216,68 @@ public class ArchiveActivity extends AppCompatActivity {
 
         chamberSeries.resetData(dpaChamberStates);
 
-        gvChamberGraph.getViewport().setXAxisBoundsManual(true);
-        gvChamberGraph.getViewport().setMinX(min_time);
-        gvChamberGraph.getViewport().setMaxX(max_time);
+        setGraphBounds(gvChamberGraph, min_time, max_time);
     }
 
-    void scanArchiveData(ArchiveRecord[] records) {
+    void scanArchiveData(ArchiveSeries series) {
+        if (series == null)
+            return;
+
+        int size = series.size();
+        DataPoint[] currentTemps = new DataPoint[size];
+        DataPoint[] neededTemps = new DataPoint[size];
+        DataPoint[] currentHumids = new DataPoint[size];
+        DataPoint[] neededHumids = new DataPoint[size];
+        DataPoint[] heaterStates = new DataPoint[size];
+        DataPoint[] wetterStates = new DataPoint[size];
+        DataPoint[] chamberStates = new DataPoint[size];
+
+        long min_time = Long.MAX_VALUE;
+        long max_time = Long.MIN_VALUE;
+
+        for (int i = 0; i < size; i++) {
+            long timestamp = series.getTimestamp(i);
+            if (timestamp <= min_time)
+                min_time = timestamp;
+
+            if (timestamp >= max_time)
+                max_time = timestamp;
+
+            long x = roundTimeFloor(timestamp);
+            currentTemps[i] = new DataPoint(x, clearFloat(series.getCurrentTemperature(i)));
+            currentHumids[i] = new DataPoint(x, clearFloat(series.getCurrentHumidity(i)));
+            neededTemps[i] = new DataPoint(x,
+                    (((int)series.getNeededTemperature(i))*10)/10.0f);
+            neededHumids[i] = new DataPoint(x, (int)(series.getNeededHumidity(i)));
+            heaterStates[i] = new DataPoint(x,
+                    series.getHeater(i)*HEATER_HEIGHT + HEATER_OFF);
+            wetterStates[i] = new DataPoint(x,
+                    series.getWetter(i)*WETTER_HEIGHT + WETTER_OFF);
+            chamberStates[i] = new DataPoint(x,
+                    CHAMBER_NEUTRAL + series.getChamber(i)*CHAMBER_HEIGHT);
+        }
+
+        min_time = roundTimeFloor(min_time);
+        max_time = roundTimeCeiling(max_time);
+
+        currentTempSeries.resetData(currentTemps);
+        neededTempSeries.resetData(neededTemps);
+        heaterSeries.resetData(heaterStates);
+        setGraphBounds(gvTempGraph, min_time, max_time);
+
+        currentHumidSeries.resetData(currentHumids);
+        neededHumidSeries.resetData(neededHumids);
+        wetterSeries.resetData(wetterStates);
+        setGraphBounds(gvHumidGraph, min_time, max_time);
+
+        chamberSeries.resetData(chamberStates);
+        setGraphBounds(gvChamberGraph, min_time, max_time);
+    }
+
+    void scanBucketData(ArchiveBucket[] buckets) {
+        if (buckets == null)
+            return;
+
         ArrayList<DataPoint> currentTemps = new ArrayList<>();
         ArrayList<DataPoint> neededTemps = new ArrayList<>();
         ArrayList<DataPoint> currentHumids = new ArrayList<>();
@@ -204,30 +289,29 @@ public class ArchiveActivity extends AppCompatActivity {
         long min_time = Long.MAX_VALUE;
         long max_time = Long.MIN_VALUE;
 
-        for (ArchiveRecord record : records) {
-            if (record.timestamp <= min_time)
-                min_time = record.timestamp;
-
-            if (record.timestamp >= max_time)
-                max_time = record.timestamp;
-
-            int chamber = record.chamber;
-            if (chamber == IncubatorState.CHAMBER_UNDEF)
-                chamber = IncubatorState.CHAMBER_RIGHT;
-            currentTemps.add(new DataPoint(roundTimeFloor(record.timestamp),
-                    clearFloat(record.currentTemperature)));
-            currentHumids.add(new DataPoint(roundTimeFloor(record.timestamp),
-                    clearFloat(record.currentHumidity)));
-            neededTemps.add(new DataPoint(roundTimeFloor(record.timestamp),
-                    (((int)record.neededTemperature)*10)/10.0f));
-            neededHumids.add(new DataPoint(roundTimeFloor(record.timestamp),
-                    (int)(record.neededHumidity)));
-            heaterStates.add(new DataPoint(roundTimeFloor(record.timestamp),
-                    record.heater*HEATER_HEIGHT + HEATER_OFF));
-            wetterStates.add(new DataPoint(roundTimeFloor(record.timestamp),
-                    record.wetter*WETTER_HEIGHT + WETTER_OFF));
-            chamberStates.add(new DataPoint(roundTimeFloor(record.timestamp),
-                    CHAMBER_NEUTRAL + chamber*CHAMBER_HEIGHT));
+        for (ArchiveBucket bucket : buckets) {
+            if (bucket.timestamp <= min_time)
+                min_time = bucket.timestamp;
+
+            if (bucket.timestamp >= max_time)
+                max_time = bucket.timestamp;
+
+            if (bucket.valid > 0) {
+                currentTemps.add(new DataPoint(bucket.timestamp,
+                        clearFloat(bucket.meanTemperature)));
+                currentHumids.add(new DataPoint(bucket.timestamp,
+                        clearFloat(bucket.meanHumidity)));
+            }
+            neededTemps.add(new DataPoint(bucket.timestamp,
+                    (((int)bucket.neededTemperature)*10)/10.0f));
+            neededHumids.add(new DataPoint(bucket.timestamp,
+                    (int)(bucket.neededHumidity)));
+            heaterStates.add(new DataPoint(bucket.timestamp,
+                    bucket.getHeaterDuty()*HEATER_HEIGHT + HEATER_OFF));
+            wetterStates.add(new DataPoint(bucket.timestamp,
+                    bucket.getWetterDuty()*WETTER_HEIGHT + WETTER_OFF));
+            chamberStates.add(new DataPoint(bucket.timestamp,
+                    CHAMBER_NEUTRAL + bucket.getChamber()*CHAMBER_HEIGHT));
         }
 
         min_time = roundTimeFloor(min_time);
@@ -238,37 +322,129 @@ public class ArchiveActivity extends AppCompatActivity {
         setChamberGraphData(chamberStates, min_time, max_time);
     }
 
+    /* Draws error intervals as pulses, read from flag index without records */
+    void markEvents(ArchiveEvent[] events) {
+        if (events == null)
+            events = new ArchiveEvent[0];
+
+        DataPoint[] points = new DataPoint[events.length * 4];
+        for (int i = 0; i < events.length; i++) {
+            points[i*4]     = new DataPoint(events[i].start, ERROR_OFF);
+            points[i*4 + 1] = new DataPoint(events[i].start, ERROR_ON);
+            points[i*4 + 2] = new DataPoint(events[i].end, ERROR_ON);
+            points[i*4 + 3] = new DataPoint(events[i].end, ERROR_OFF);
+        }
+        errorSeries.resetData(points);
+    }
+
     void scanRecords_local(int timespan_type) {
-        Log.i(LOG_TAG, "scanRecords_local");
-        scanArchiveData(archiver.getLocalArchiveRecords(timespanBegin(timespan_type)));
+        ArchiveBlockCache cache = archiver.getBlockCache();
+        Log.i(LOG_TAG, "scanRecords_local, block cache hits " + cache.getHits()
+                + ", misses " + cache.getMisses());
+
+        long begin = timespanBegin(timespan_type);
+        long end = Calendar.getInstance().getTimeInMillis();
+
+        /* Current minute is redrawn every 2 seconds, so it is read from memory */
+        if (timespan_type == TIMESPAN_CURRENT) {
+            scanArchiveData(archiver.getRecentArchiveSeries(begin, Long.MAX_VALUE));
+            markEvents(archiver.getRecentArchiveEvents(ERROR_EVENTS, begin, Long.MAX_VALUE));
+            return;
+        }
+
+        long width = archiver.getRollupWidth(begin, end, ROLLUP_POINTS);
+        if (width > 0)
+            scanBucketData(archiver.getLocalArchiveBuckets(width, begin, end));
+        else
+            scanArchiveData(archiver.getLocalArchiveSeries(begin, Long.MAX_VALUE));
+        markEvents(archiver.getLocalArchiveEvents(ERROR_EVENTS, begin, Long.MAX_VALUE));
     }
 
     void scanRecords_cloud(int timespan_type) {
         try {
-            scanArchiveData(archiver.getCloudArchiveRecords(timespanBegin(timespan_type)));
+            scanArchiveData(archiver.getCloudArchiveSeries(timespanBegin(timespan_type)));
+            markEvents(null);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /*
+     * Local records with gaps filled from cloud, current minute is always local.
+     * Long spans are drawn from rollups with missing buckets made of cloud
+     * records. Cloud requests take seconds, so they are made on background thread.
+     */
+    void scanRecords_hybrid(int timespan_type) {
+        if (timespan_type == TIMESPAN_CURRENT) {
+            scanRecords_local(timespan_type);
+            return;
+        }
+
+        final int generation = scanGeneration;
+        final long begin = timespanBegin(timespan_type);
+        final long end = Calendar.getInstance().getTimeInMillis();
+        final long width = archiver.getRollupWidth(begin, end, ROLLUP_POINTS);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ArchiveBucket[] buckets = (width > 0)
+                        ? archiver.getHybridArchiveBuckets(width, begin, end) : null;
+                final ArchiveSeries series = (buckets == null)
+                        ? archiver.getHybridArchiveSeries(begin, end) : null;
+                final ArchiveEvent[] events = archiver.getLocalArchiveEvents(ERROR_EVENTS,
+                        begin, Long.MAX_VALUE);
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != scanGeneration || isDestroyed())
+                            return;
+                        if (buckets != null)
+                            scanBucketData(buckets);
+                        else
+                            scanArchiveData(series);
+                        markEvents(events);
+                    }
+                });
+            }
+        }, "ArchiveActivity Hybrid").start();
+    }
+
     void scanRecords(int timespan_type) {
-        if (cloudArchiveMode) {
+        scanGeneration++;
+        if (hybridArchiveMode) {
+            scanRecords_hybrid(timespan_type);
+        } else if (cloudArchiveMode) {
             scanRecords_cloud(timespan_type);
         } else {
             scanRecords_local(timespan_type);
         }
     }
 
+    /* Size is in megabytes, 0 disables cache */
+    private void setArchiveCacheSize(String value) {
+        try {
+            float size = Float.parseFloat(value.trim().replace(',', '.'));
+            archiver.setBlockCacheBudget((long)(size * 1024 * 1024));
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_archive);
 
-        archiver = new Archiver(getApplicationContext());
-
         prefs = PreferenceManager.getDefaultSharedPreferences(this);
         incubatorAddress = prefs.getString("incubator_address", DEFAULT_INCUBATOR_ADDRESS);
+
+        archiver = new Archiver(getApplicationContext(), incubatorAddress);
         cloudArchiveMode = prefs.getBoolean("cloud_archive_mode", true);
+        hybridArchiveMode = prefs.getBoolean("hybrid_archive_mode", false);
+        setArchiveCacheSize(prefs.getString("archive_cache_size", "8"));
         prefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
             @Override
             public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
@@ -277,16 +453,23 @@ public class ArchiveActivity extends AppCompatActivity {
                     incubatorAddress = sharedPreferences.getString(
                             key, DEFAULT_INCUBATOR_ADDRESS
                     );
-                    if (cloudArchiveMode)
+                    archiver.setIncubator(incubatorAddress);
+                    if (cloudArchiveMode || hybridArchiveMode)
                         archiver.retrieveCloudArchiveAddress(incubatorAddress);
                 } else if (key.compareTo("cloud_archive_mode") == 0) {
                     cloudArchiveMode = sharedPreferences.getBoolean("cloud_archive_mode", true);
+                } else if (key.compareTo("hybrid_archive_mode") == 0) {
+                    hybridArchiveMode = sharedPreferences.getBoolean(key, false);
+                    if (hybridArchiveMode)
+                        archiver.retrieveCloudArchiveAddress(incubatorAddress);
+                } else if (key.compareTo("archive_cache_size") == 0) {
+                    setArchiveCacheSize(sharedPreferences.getString(key, "8"));
                 }
             }
         };
         prefs.registerOnSharedPreferenceChangeListener(prefsListener);
 
-        if (cloudArchiveMode)
+        if (cloudArchiveMode || hybridArchiveMode)
             archiver.retrieveCloudArchiveAddress(incubatorAddress);
 
         ArrayAdapter<CharSequence> adapter =
@@ -339,6 +522,11 @@ public class ArchiveActivity extends AppCompatActivity {
         heaterSeries.setTitle(getString(R.string.heater_state));
         gvTempGraph.getSecondScale().addSeries(heaterSeries);
 
+        errorSeries = new LineGraphSeries<>();
+        errorSeries.setColor(Color.MAGENTA);
+        errorSeries.setTitle(getString(R.string.archive_errors));
+        gvTempGraph.getSecondScale().addSeries(errorSeries);
+
         gvHumidGraph = findViewById(R.id.humidGraph);
         gvHumidGraph.getViewport().setScalable(true);
         gvHumidGraph.getGridLabelRenderer().setHumanRounding(false);
@@ -414,6 +602,96 @@ public class ArchiveActivity extends AppCompatActivity {
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        exportCancelled = true;
+        archiver.close();
+        super.onDestroy();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.archive_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+
+        if (item.getItemId() == R.id.export_csv) {
+            intent.setType("text/csv");
+            intent.putExtra(Intent.EXTRA_TITLE, "archive.csv");
+            startActivityForResult(intent, REQUEST_EXPORT_CSV);
+            return true;
+        } else if (item.getItemId() == R.id.export_binary) {
+            intent.setType("application/octet-stream");
+            intent.putExtra(Intent.EXTRA_TITLE, "archive" + ArchiveColumns.V2_EXTENSION);
+            startActivityForResult(intent, REQUEST_EXPORT_BINARY);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if (resultCode != RESULT_OK || data == null || data.getData() == null)
+            return;
+        if (requestCode == REQUEST_EXPORT_CSV)
+            exportLocalArchive(data.getData(), ArchiveExporter.FORMAT_CSV);
+        else if (requestCode == REQUEST_EXPORT_BINARY)
+            exportLocalArchive(data.getData(), ArchiveExporter.FORMAT_BINARY);
+    }
+
+    /* Exports selected timespan on background thread, cancelled when activity is destroyed */
+    void exportLocalArchive(final Uri uri, final int format) {
+        final long begin = timespanBegin(spTimespan.getSelectedItemPosition());
+        exportCancelled = false;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long records = -1;
+                try {
+                    OutputStream ostream = new BufferedOutputStream(
+                            getContentResolver().openOutputStream(uri), 65536);
+                    try {
+                        records = archiver.exportLocalArchive(begin, Long.MAX_VALUE, format,
+                                ostream, new ArchiveExporter.Listener() {
+                            @Override
+                            public boolean onProgress(long records, float fraction) {
+                                Log.i(LOG_TAG, "export " + records + " " + fraction);
+                                return !exportCancelled;
+                            }
+                        });
+                    } finally {
+                        ostream.close();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+
+                final long exported = records;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (exported >= 0)
+                            Toast.makeText(ArchiveActivity.this,
+                                    getString(R.string.export_done, exported),
+                                    Toast.LENGTH_LONG).show();
+                        else
+                            Toast.makeText(ArchiveActivity.this,
+                                    R.string.export_failed, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "ArchiveActivity Export").start();
+    }
+
     public void onUpdateBtnClick(View view) {
         scanRecords(spTimespan.getSelectedItemPosition());
     }
@@ -0,0 +1,216 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * LRU cache of decoded blocks of v2 files, bounded by memory budget.
+ * Only v2 files are cached: they are written once and never appended to,
+ * while v1 segments which still receive records are read in place.
+ * Key holds length and modification time of file, so that block of a
+ * rewritten file is never served from an entry of the old one.
+ */
+public class ArchiveBlockCache {
+    public static final long DEFAULT_BUDGET = 8L * 1024 * 1024;
+
+    /* Bytes per cached record and per entry besides arrays */
+    public static final int RECORD_BYTES = 8 + 2 + 2 + 1 + 1 + 1 + 1;
+    public static final int ENTRY_OVERHEAD = 256;
+
+    private static ArchiveBlockCache shared;
+
+    /* Decoded block with all columns, never changed after creation */
+    private static class Entry {
+        final String file;
+        final int count;
+        final long minTimestamp, maxTimestamp;
+        final long[] timestamps;
+        final short[] curTemps, curHumids;
+        final byte[] st, neededTemps, neededHumids, er;
+
+        Entry(String file, ArchiveColumns.Block block) {
+            this.file = file;
+            this.count = block.count;
+            this.minTimestamp = block.minTimestamp;
+            this.maxTimestamp = block.maxTimestamp;
+            this.timestamps = copyOf(block.timestamps, count);
+            this.curTemps = copyOf(block.curTemps, count);
+            this.curHumids = copyOf(block.curHumids, count);
+            this.st = copyOf(block.st, count);
+            this.neededTemps = copyOf(block.neededTemps, count);
+            this.neededHumids = copyOf(block.neededHumids, count);
+            this.er = copyOf(block.er, count);
+        }
+
+        long getSize() {
+            return ENTRY_OVERHEAD + (long) count * RECORD_BYTES;
+        }
+
+        void copyTo(int columns, ArchiveColumns.Block block) {
+            block.count = count;
+            block.minTimestamp = minTimestamp;
+            block.maxTimestamp = maxTimestamp;
+
+            if ((columns & ArchiveColumns.COL_TIMESTAMP) != 0)
+                System.arraycopy(timestamps, 0, block.timestamps, 0, count);
+            if ((columns & ArchiveColumns.COL_CUR_TEMP) != 0)
+                System.arraycopy(curTemps, 0, block.curTemps, 0, count);
+            if ((columns & ArchiveColumns.COL_CUR_HUMID) != 0)
+                System.arraycopy(curHumids, 0, block.curHumids, 0, count);
+            if ((columns & ArchiveColumns.COL_ST) != 0)
+                System.arraycopy(st, 0, block.st, 0, count);
+            if ((columns & ArchiveColumns.COL_NEEDED_TEMP) != 0)
+                System.arraycopy(neededTemps, 0, block.neededTemps, 0, count);
+            if ((columns & ArchiveColumns.COL_NEEDED_HUMID) != 0)
+                System.arraycopy(neededHumids, 0, block.neededHumids, 0, count);
+            if ((columns & ArchiveColumns.COL_ER) != 0)
+                System.arraycopy(er, 0, block.er, 0, count);
+        }
+
+        private static long[] copyOf(long[] array, int count) {
+            long[] result = new long[count];
+            System.arraycopy(array, 0, result, 0, count);
+            return result;
+        }
+
+        private static short[] copyOf(short[] array, int count) {
+            short[] result = new short[count];
+            System.arraycopy(array, 0, result, 0, count);
+            return result;
+        }
+
+        private static byte[] copyOf(byte[] array, int count) {
+            byte[] result = new byte[count];
+            System.arraycopy(array, 0, result, 0, count);
+            return result;
+        }
+    }
+
+    /* In access order, eldest entry is evicted first */
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private long budget;
+    private long size = 0;
+    private long hits = 0, misses = 0, evictions = 0;
+
+    /* One cache for the process, so that all archivers share the budget */
+    public static synchronized ArchiveBlockCache getShared() {
+        if (shared == null)
+            shared = new ArchiveBlockCache(DEFAULT_BUDGET);
+        return shared;
+    }
+
+    ArchiveBlockCache(long budget) {
+        this.budget = Math.max(budget, 0);
+    }
+
+    /* Prefix of keys of blocks of v2 file in its current version */
+    public static String getFileKey(File v2, long length) {
+        return v2.getAbsolutePath() + ":" + length + ":" + v2.lastModified();
+    }
+
+    private static String getBlockKey(String fileKey, int offset) {
+        return fileKey + "@" + offset;
+    }
+
+    public synchronized boolean isEnabled() {
+        return budget > 0;
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /* 0 disables cache, shrinking evicts least recently used blocks at once */
+    public synchronized void setBudget(long budget) {
+        this.budget = Math.max(budget, 0);
+        evict();
+    }
+
+    /* Bytes taken by cached blocks */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getBlockCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized void resetCounters() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    /* Fills requested columns of block from cache, returns false on miss */
+    public synchronized boolean get(String fileKey, int offset, int columns,
+                                    ArchiveColumns.Block block) {
+        Entry entry = entries.get(getBlockKey(fileKey, offset));
+        if (entry == null) {
+            misses++;
+            return false;
+        }
+
+        hits++;
+        entry.copyTo(columns, block);
+        return true;
+    }
+
+    /* Block must have all columns decoded */
+    public synchronized void put(String fileKey, int offset, ArchiveColumns.Block block) {
+        if (budget <= 0)
+            return;
+
+        Entry entry = new Entry(fileKey, block);
+        if (entry.getSize() > budget)
+            return;
+
+        Entry old = entries.put(getBlockKey(fileKey, offset), entry);
+        if (old != null)
+            size -= old.getSize();
+        size += entry.getSize();
+        evict();
+    }
+
+    /* Drops blocks of every version of file, called when file is replaced or removed */
+    public synchronized void invalidate(File v2) {
+        String prefix = v2.getAbsolutePath() + ":";
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.file.startsWith(prefix)) {
+                size -= entry.getSize();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > budget && it.hasNext()) {
+            size -= it.next().getValue().getSize();
+            it.remove();
+            evictions++;
+        }
+    }
+}
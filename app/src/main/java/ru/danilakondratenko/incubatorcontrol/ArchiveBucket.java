@@ -0,0 +1,155 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.nio.ByteBuffer;
+
+public class ArchiveBucket {
+    public long timestamp;
+    public long duration;
+
+    /* Number of records, and of records with valid measurements */
+    public int count;
+    public int valid;
+
+    /* Number of records with heater or wetter turned on */
+    public int heater;
+    public int wetter;
+
+    public float minTemperature, maxTemperature, meanTemperature;
+    public float minHumidity, maxHumidity, meanHumidity;
+
+    /* Last needed values in bucket */
+    public float neededTemperature;
+    public float neededHumidity;
+
+    /* Number of records per chamber state */
+    public int chamberLeft, chamberNeutral, chamberRight, chamberError;
+
+    ArchiveBucket() {
+        this.timestamp = 0;
+        this.duration = 0;
+        clear();
+    }
+
+    ArchiveBucket(ArchiveBucket bucket) {
+        this.timestamp = bucket.timestamp;
+        this.duration = bucket.duration;
+        this.count = bucket.count;
+        this.valid = bucket.valid;
+        this.heater = bucket.heater;
+        this.wetter = bucket.wetter;
+        this.minTemperature = bucket.minTemperature;
+        this.maxTemperature = bucket.maxTemperature;
+        this.meanTemperature = bucket.meanTemperature;
+        this.minHumidity = bucket.minHumidity;
+        this.maxHumidity = bucket.maxHumidity;
+        this.meanHumidity = bucket.meanHumidity;
+        this.neededTemperature = bucket.neededTemperature;
+        this.neededHumidity = bucket.neededHumidity;
+        this.chamberLeft = bucket.chamberLeft;
+        this.chamberNeutral = bucket.chamberNeutral;
+        this.chamberRight = bucket.chamberRight;
+        this.chamberError = bucket.chamberError;
+    }
+
+    public void clear() {
+        this.count = 0;
+        this.valid = 0;
+        this.heater = 0;
+        this.wetter = 0;
+        this.minTemperature = ArchiveRecord.NO_DATA_FLOAT;
+        this.maxTemperature = ArchiveRecord.NO_DATA_FLOAT;
+        this.meanTemperature = ArchiveRecord.NO_DATA_FLOAT;
+        this.minHumidity = ArchiveRecord.NO_DATA_FLOAT;
+        this.maxHumidity = ArchiveRecord.NO_DATA_FLOAT;
+        this.meanHumidity = ArchiveRecord.NO_DATA_FLOAT;
+        this.neededTemperature = ArchiveRecord.NO_DATA_FLOAT;
+        this.neededHumidity = ArchiveRecord.NO_DATA_FLOAT;
+        this.chamberLeft = 0;
+        this.chamberNeutral = 0;
+        this.chamberRight = 0;
+        this.chamberError = 0;
+    }
+
+    public void add(long timestamp, float curTemp, float curHumid,
+                    float neededTemp, float neededHumid, byte st, byte er) {
+        count++;
+
+        if ((st & Archiver.ST_HEATER) != 0)
+            heater++;
+        if ((st & Archiver.ST_WETTER) != 0)
+            wetter++;
+
+        switch (st & Archiver.ST_CHAMBER) {
+            case Archiver.ST_CHAMBER_LEFT:
+                chamberLeft++;
+                break;
+            case Archiver.ST_CHAMBER_NEUTRAL:
+                chamberNeutral++;
+                break;
+            case Archiver.ST_CHAMBER_UNDEF:
+            case Archiver.ST_CHAMBER_RIGHT:
+                chamberRight++;
+                break;
+            case Archiver.ST_CHAMBER_ERROR:
+                chamberError++;
+                break;
+        }
+
+        neededTemperature = neededTemp;
+        neededHumidity = neededHumid;
+
+        if ((er & Archiver.ER_NO_INTERNET) != 0)
+            return;
+
+        if (valid == 0) {
+            minTemperature = maxTemperature = meanTemperature = curTemp;
+            minHumidity = maxHumidity = meanHumidity = curHumid;
+        } else {
+            minTemperature = Math.min(minTemperature, curTemp);
+            maxTemperature = Math.max(maxTemperature, curTemp);
+            minHumidity = Math.min(minHumidity, curHumid);
+            maxHumidity = Math.max(maxHumidity, curHumid);
+            meanTemperature += (curTemp - meanTemperature) / (valid + 1);
+            meanHumidity += (curHumid - meanHumidity) / (valid + 1);
+        }
+        valid++;
+    }
+
+    /* Adds record at offset of bb */
+    public void add(ByteBuffer bb, int offset) {
+        add(bb.getLong(offset + Archiver.TIMESTAMP),
+                bb.getShort(offset + Archiver.CUR_TEMP) / 256.0f,
+                bb.getShort(offset + Archiver.CUR_HUMID) / 256.0f,
+                ((float) bb.get(offset + Archiver.NEEDED_TEMP) + 360) / 10.0f,
+                bb.get(offset + Archiver.NEEDED_HUMID),
+                bb.get(offset + Archiver.ST),
+                bb.get(offset + Archiver.ER));
+    }
+
+    public float getHeaterDuty() {
+        return (count == 0) ? 0 : (float) heater / count;
+    }
+
+    public float getWetterDuty() {
+        return (count == 0) ? 0 : (float) wetter / count;
+    }
+
+    /* Most frequent chamber position in bucket */
+    public int getChamber() {
+        int result = IncubatorState.CHAMBER_NEUTRAL;
+        int max = chamberNeutral;
+
+        if (chamberLeft > max) {
+            result = IncubatorState.CHAMBER_LEFT;
+            max = chamberLeft;
+        }
+        if (chamberRight > max) {
+            result = IncubatorState.CHAMBER_RIGHT;
+            max = chamberRight;
+        }
+        if (chamberError > max)
+            result = IncubatorState.CHAMBER_ERROR;
+
+        return result;
+    }
+}
@@ -0,0 +1,476 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/* Archive format v2: blocks of records stored column by column */
+public class ArchiveColumns {
+    /* Format constants */
+    public static final String V2_EXTENSION = ".v2";
+    public static final int MAGIC = 0x49415632; /* "IAV2" */
+    public static final int VERSION = 2;
+    public static final int FILE_HEADER_SIZE = 8;
+    public static final int BLOCK_RECORDS = 4096;
+
+    /* Columns */
+    public static final int COLUMNS = 7;
+
+    public static final int COL_TIMESTAMP    = 0x01;
+    public static final int COL_CUR_TEMP     = 0x02;
+    public static final int COL_CUR_HUMID    = 0x04;
+    public static final int COL_ST           = 0x08;
+    public static final int COL_NEEDED_TEMP  = 0x10;
+    public static final int COL_NEEDED_HUMID = 0x20;
+    public static final int COL_ER           = 0x40;
+    public static final int COL_ALL          = 0x7F;
+
+    /* Column coding modes */
+    public static final byte MODE_PLAIN = 0;
+    public static final byte MODE_RUNS  = 1;
+
+    /* Block header indexes */
+    public static final int BH_COUNT         =  0;
+    public static final int BH_MIN_TIMESTAMP =  4;
+    public static final int BH_MAX_TIMESTAMP = 12;
+    public static final int BH_LENGTHS       = 20;
+    public static final int BLOCK_HEADER_SIZE = BH_LENGTHS + COLUMNS * 4;
+
+    /* Decoded block, only requested columns are valid */
+    public static class Block {
+        public int count;
+        public long minTimestamp, maxTimestamp;
+
+        public final long[] timestamps = new long[BLOCK_RECORDS];
+        public final short[] curTemps = new short[BLOCK_RECORDS];
+        public final short[] curHumids = new short[BLOCK_RECORDS];
+        public final byte[] st = new byte[BLOCK_RECORDS];
+        public final byte[] neededTemps = new byte[BLOCK_RECORDS];
+        public final byte[] neededHumids = new byte[BLOCK_RECORDS];
+        public final byte[] er = new byte[BLOCK_RECORDS];
+
+        /* Writes record i in v1 layout */
+        public void toRecord(int i, ByteBuffer out, int offset) {
+            out.putLong(offset + Archiver.TIMESTAMP, timestamps[i]);
+            out.putShort(offset + Archiver.CUR_TEMP, curTemps[i]);
+            out.putShort(offset + Archiver.CUR_HUMID, curHumids[i]);
+            out.put(offset + Archiver.ST, st[i]);
+            out.put(offset + Archiver.NEEDED_TEMP, neededTemps[i]);
+            out.put(offset + Archiver.NEEDED_HUMID, neededHumids[i]);
+            out.put(offset + Archiver.ER, er[i]);
+        }
+    }
+
+    public interface BlockVisitor {
+        /* Returns false to stop reading */
+        boolean onBlock(Block block);
+    }
+
+    public static File getV2File(File segment) {
+        String name = segment.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0)
+            name = name.substring(0, dot);
+        return new File(segment.getParentFile(), name + V2_EXTENSION);
+    }
+
+    /* Zigzag varint coding */
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            v |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static int varLongSize(long value) {
+        long v = (value << 1) ^ (value >> 63);
+        int size = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /* Column is either plain varints or (value, run) pairs, whichever is shorter */
+
+    private static void putColumn(ByteBuffer out, long[] values, int count) {
+        int plainSize = 0, runsSize = 0;
+        for (int i = 0; i < count; ) {
+            int run = 1;
+            while (i + run < count && values[i + run] == values[i])
+                run++;
+            plainSize += varLongSize(values[i]) * run;
+            runsSize += varLongSize(values[i]) + varLongSize(run);
+            i += run;
+        }
+
+        if (plainSize <= runsSize) {
+            out.put(MODE_PLAIN);
+            for (int i = 0; i < count; i++)
+                putVarLong(out, values[i]);
+            return;
+        }
+
+        out.put(MODE_RUNS);
+        for (int i = 0; i < count; ) {
+            int run = 1;
+            while (i + run < count && values[i + run] == values[i])
+                run++;
+            putVarLong(out, values[i]);
+            putVarLong(out, run);
+            i += run;
+        }
+    }
+
+    private static void getColumn(ByteBuffer in, long[] values, int count) {
+        if (in.get() == MODE_PLAIN) {
+            for (int i = 0; i < count; i++)
+                values[i] = getVarLong(in);
+            return;
+        }
+
+        int i = 0;
+        while (i < count) {
+            long value = getVarLong(in);
+            int run = (int) getVarLong(in);
+            for (int j = 0; j < run && i < count; j++)
+                values[i++] = value;
+        }
+    }
+
+    /* Encodes count v1 records from records at offset into out, returns block length */
+    public static int encodeBlock(ByteBuffer records, int offset, int count, ByteBuffer out) {
+        long[] values = new long[count];
+        int start = out.position();
+        long minTimestamp = Long.MAX_VALUE, maxTimestamp = Long.MIN_VALUE;
+
+        out.position(start + BLOCK_HEADER_SIZE);
+
+        for (int column = 0; column < COLUMNS; column++) {
+            int columnStart = out.position();
+            long prev = 0, prevDelta = 0;
+
+            for (int i = 0; i < count; i++) {
+                int record = offset + i * Archiver.RECORD_SIZE;
+                switch (column) {
+                    case 0: {
+                        /* Delta of delta */
+                        long timestamp = records.getLong(record + Archiver.TIMESTAMP);
+                        minTimestamp = Math.min(minTimestamp, timestamp);
+                        maxTimestamp = Math.max(maxTimestamp, timestamp);
+                        long delta = timestamp - prev;
+                        values[i] = (i == 0) ? timestamp : delta - prevDelta;
+                        prevDelta = (i == 0) ? 0 : delta;
+                        prev = timestamp;
+                        break;
+                    }
+                    case 1:
+                    case 2: {
+                        /* Delta */
+                        long value = records.getShort(record
+                                + (column == 1 ? Archiver.CUR_TEMP : Archiver.CUR_HUMID));
+                        values[i] = value - prev;
+                        prev = value;
+                        break;
+                    }
+                    default:
+                        values[i] = records.get(record + byteColumnIndex(column));
+                        break;
+                }
+            }
+
+            putColumn(out, values, count);
+            out.putInt(start + BH_LENGTHS + column * 4, out.position() - columnStart);
+        }
+
+        out.putInt(start + BH_COUNT, count);
+        out.putLong(start + BH_MIN_TIMESTAMP, minTimestamp);
+        out.putLong(start + BH_MAX_TIMESTAMP, maxTimestamp);
+
+        return out.position() - start;
+    }
+
+    private static int byteColumnIndex(int column) {
+        switch (column) {
+            case 3:
+                return Archiver.ST;
+            case 4:
+                return Archiver.NEEDED_TEMP;
+            case 5:
+                return Archiver.NEEDED_HUMID;
+            default:
+                return Archiver.ER;
+        }
+    }
+
+    public static int getBlockLength(ByteBuffer in, int start) {
+        int length = BLOCK_HEADER_SIZE;
+        for (int column = 0; column < COLUMNS; column++)
+            length += in.getInt(start + BH_LENGTHS + column * 4);
+        return length;
+    }
+
+    /* Decodes block at in's position, skipping columns not in mask */
+    public static void decodeBlock(ByteBuffer in, int columns, Block block) {
+        int start = in.position();
+        int count = in.getInt(start + BH_COUNT);
+        long[] values = new long[count];
+
+        block.count = count;
+        block.minTimestamp = in.getLong(start + BH_MIN_TIMESTAMP);
+        block.maxTimestamp = in.getLong(start + BH_MAX_TIMESTAMP);
+
+        int position = start + BLOCK_HEADER_SIZE;
+        for (int column = 0; column < COLUMNS; column++) {
+            int length = in.getInt(start + BH_LENGTHS + column * 4);
+            if ((columns & (1 << column)) == 0) {
+                position += length;
+                continue;
+            }
+
+            in.position(position);
+            getColumn(in, values, count);
+            position += length;
+
+            switch (column) {
+                case 0: {
+                    long prev = 0, delta = 0;
+                    for (int i = 0; i < count; i++) {
+                        if (i == 0) {
+                            prev = values[0];
+                        } else {
+                            delta += values[i];
+                            prev += delta;
+                        }
+                        block.timestamps[i] = prev;
+                    }
+                    break;
+                }
+                case 1:
+                case 2: {
+                    short[] dst = (column == 1) ? block.curTemps : block.curHumids;
+                    long prev = 0;
+                    for (int i = 0; i < count; i++) {
+                        prev += values[i];
+                        dst[i] = (short) prev;
+                    }
+                    break;
+                }
+                default: {
+                    byte[] dst;
+                    if (column == 3)
+                        dst = block.st;
+                    else if (column == 4)
+                        dst = block.neededTemps;
+                    else if (column == 5)
+                        dst = block.neededHumids;
+                    else
+                        dst = block.er;
+                    for (int i = 0; i < count; i++)
+                        dst[i] = (byte) values[i];
+                    break;
+                }
+            }
+        }
+
+        in.position(position);
+    }
+
+    /* Pull reader over blocks of a v2 file, decoded blocks are shared through cache */
+    public static class Reader {
+        private final FileInputStream istream;
+        private final MappedByteBuffer map;
+        private final ArchiveBlockCache cache;
+        private final String fileKey;
+        private int position;
+
+        public Reader(File v2) throws IOException {
+            this(v2, ArchiveBlockCache.getShared());
+        }
+
+        /* Cache may be null */
+        public Reader(File v2, ArchiveBlockCache cache) throws IOException {
+            istream = new FileInputStream(v2);
+            try {
+                FileChannel channel = istream.getChannel();
+                long length = channel.size();
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                this.cache = (cache != null && cache.isEnabled()) ? cache : null;
+                this.fileKey = ArchiveBlockCache.getFileKey(v2, length);
+
+                if (map.limit() < FILE_HEADER_SIZE
+                        || map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+                    throw new IOException("Not an archive v2 file: " + v2);
+            } catch (IOException e) {
+                istream.close();
+                throw e;
+            }
+            position = FILE_HEADER_SIZE;
+        }
+
+        /* Decodes next block overlapping [mintime, maxtime), returns false at end of file */
+        public boolean next(long mintime, long maxtime, int columns, Block block) {
+            while (position + BLOCK_HEADER_SIZE <= map.limit()) {
+                int start = position;
+                position += getBlockLength(map, start);
+                if (map.getLong(start + BH_MAX_TIMESTAMP) >= mintime
+                        && map.getLong(start + BH_MIN_TIMESTAMP) < maxtime) {
+                    if (cache == null) {
+                        map.position(start);
+                        decodeBlock(map, columns, block);
+                        return true;
+                    }
+                    if (cache.get(fileKey, start, columns, block))
+                        return true;
+
+                    /* Entries hold all columns, so only full decodes are cached */
+                    map.position(start);
+                    decodeBlock(map, columns, block);
+                    if (columns == COL_ALL)
+                        cache.put(fileKey, start, block);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void close() throws IOException {
+            istream.close();
+        }
+    }
+
+    /* Writer of v2 file, records in v1 layout are gathered into blocks */
+    public static class Writer {
+        private final FileOutputStream ostream;
+        private final FileChannel output;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_RECORDS * Archiver.RECORD_SIZE);
+        private final ByteBuffer out = ByteBuffer.allocate(
+                BLOCK_HEADER_SIZE + COLUMNS + BLOCK_RECORDS * COLUMNS * 20);
+        private int count = 0;
+
+        public Writer(File v2) throws IOException {
+            ostream = new FileOutputStream(v2);
+            output = ostream.getChannel();
+
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            try {
+                writeOut();
+            } catch (IOException e) {
+                ostream.close();
+                throw e;
+            }
+        }
+
+        private void writeOut() throws IOException {
+            out.flip();
+            while (out.hasRemaining())
+                output.write(out);
+            out.clear();
+        }
+
+        private void writeBlock() throws IOException {
+            if (count == 0)
+                return;
+
+            encodeBlock(block, 0, count, out);
+            writeOut();
+            count = 0;
+        }
+
+        public void append(ByteBuffer bb, int offset) throws IOException {
+            int position = count * Archiver.RECORD_SIZE;
+            block.putLong(position, bb.getLong(offset));
+            block.putLong(position + 8, bb.getLong(offset + 8));
+            if (++count == BLOCK_RECORDS)
+                writeBlock();
+        }
+
+        /* Writes last block and syncs file, then closes it */
+        public void close() throws IOException {
+            try {
+                writeBlock();
+                ostream.getFD().sync();
+            } finally {
+                ostream.close();
+            }
+        }
+    }
+
+    /* Visits blocks overlapping [mintime, maxtime) with requested columns decoded */
+    public static void read(File v2, long mintime, long maxtime, int columns,
+                            BlockVisitor visitor) throws IOException {
+        Reader reader = new Reader(v2);
+        try {
+            Block block = new Block();
+            while (reader.next(mintime, maxtime, columns, block)) {
+                if (!visitor.onBlock(block))
+                    break;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Converts framed v1 segment into v2 file next to it, then removes v1 data
+     * and index. Torn tail left by a crash is not converted.
+     */
+    public static File migrate(File segment) throws IOException {
+        File v2 = getV2File(segment);
+        File temp = new File(v2.getPath() + ".tmp");
+
+        FileInputStream istream = new FileInputStream(segment);
+        try {
+            FileChannel input = istream.getChannel();
+            long length = ArchiveFrames.validate(input, new CRC32());
+            long records = ArchiveFrames.getRecordCount(length);
+            MappedByteBuffer map = input.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+            /* Frame headers are dropped, records are gathered contiguously */
+            Writer writer = new Writer(temp);
+            try {
+                for (long i = 0; i < records; i++)
+                    writer.append(map, (int) ArchiveFrames.getRecordOffset(i));
+            } finally {
+                writer.close();
+            }
+        } finally {
+            istream.close();
+        }
+
+        /* Flag index outlives v1 data, so it must cover the last record */
+        ArchiveFlagIndex.open(segment).seal();
+
+        ArchiveBlockCache.getShared().invalidate(v2);
+        if (!temp.renameTo(v2))
+            throw new IOException("Cannot create " + v2);
+
+        ArchiveIndex.forget(segment);
+        if (!segment.delete())
+            throw new IOException("Cannot remove migrated segment " + segment);
+
+        return v2;
+    }
+}
@@ -0,0 +1,95 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Committed record counts of segments open for writing. Writer advances the
+ * count only after records and the header of their frame are written, readers
+ * take a snapshot without locks and never read past it.
+ *
+ * Segments open by any writer of the process are registered here too, so that
+ * no conversion removes a file a writer still holds, whichever Archiver or
+ * fleet writer it belongs to.
+ */
+public class ArchiveCommits {
+    private static final ConcurrentHashMap<String, AtomicLong> committed =
+            new ConcurrentHashMap<>();
+
+    /* Guarded by class lock */
+    private static final HashSet<String> writing = new HashSet<>();
+    private static final HashSet<String> sealing = new HashSet<>();
+
+    /* Called by writer before opening file, fails while it is converted */
+    static synchronized void register(File dataFile) throws IOException {
+        String key = dataFile.getAbsolutePath();
+        if (sealing.contains(key))
+            throw new IOException("Segment is being converted: " + dataFile);
+        writing.add(key);
+    }
+
+    static synchronized void unregister(File dataFile) {
+        writing.remove(dataFile.getAbsolutePath());
+    }
+
+    /*
+     * Keeps writers off file until endSeal(), returns false if a writer holds
+     * it, then file must be left as it is.
+     */
+    public static synchronized boolean beginSeal(File dataFile) {
+        String key = dataFile.getAbsolutePath();
+        if (writing.contains(key) || sealing.contains(key))
+            return false;
+        sealing.add(key);
+        return true;
+    }
+
+    public static synchronized void endSeal(File dataFile) {
+        sealing.remove(dataFile.getAbsolutePath());
+    }
+
+    static void publish(File dataFile, long records) {
+        String key = dataFile.getAbsolutePath();
+        AtomicLong value = committed.get(key);
+        if (value == null) {
+            value = committed.putIfAbsent(key, new AtomicLong(records));
+            if (value == null)
+                return;
+        }
+        value.set(records);
+    }
+
+    /* Called by writer on close, file is stable afterwards */
+    static void forget(File dataFile) {
+        committed.remove(dataFile.getAbsolutePath());
+    }
+
+    /* Number of records readers may use */
+    public static long getCommittedRecords(File dataFile) throws IOException {
+        AtomicLong value = committed.get(dataFile.getAbsolutePath());
+        if (value != null)
+            return value.get();
+        if (!dataFile.exists())
+            return 0;
+
+        /* No writer in this process, last frame header tells what was committed */
+        RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+        try {
+            return ArchiveFrames.getCommittedRecords(raf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /* Data length up to the end of the last committed record */
+    public static long getCommittedLength(File dataFile) throws IOException {
+        long records = getCommittedRecords(dataFile);
+        if (records == 0)
+            return 0;
+        return ArchiveFrames.getRecordOffset(records - 1) + Archiver.RECORD_SIZE;
+    }
+}
@@ -0,0 +1,101 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Background job compacting local archives of all known incubators.
+ * Runs while device is idle and charging, stops between segments when
+ * conditions are lost and is rescheduled by the system.
+ */
+public class ArchiveCompactionService extends JobService {
+    private static final String LOG_TAG = "ArchiveCompaction";
+
+    public static final int JOB_ID = 1;
+    public static final long PERIOD = ArchiveCompactor.DAY;
+
+    private volatile ArchiveCompactor compactor;
+    private volatile boolean stopped;
+
+    /* Replaces job scheduled before, safe to call on every start of app */
+    public static void schedule(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null)
+            return;
+
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, ArchiveCompactionService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(PERIOD)
+                .build();
+        scheduler.schedule(job);
+    }
+
+    private List<Archiver> openArchivers() {
+        ArrayList<Archiver> result = new ArrayList<>();
+        Archiver main = new Archiver(getApplicationContext());
+        List<ArchiveRegistry.Incubator> incubators = main.getKnownIncubators();
+
+        /* Archive before namespaces is the namespace of the first incubator */
+        if (incubators == null || incubators.isEmpty()) {
+            result.add(main);
+            return result;
+        }
+        main.close();
+        for (ArchiveRegistry.Incubator incubator : incubators)
+            result.add(new Archiver(getApplicationContext(), incubator.address));
+        return result;
+    }
+
+    private void compactAll() {
+        for (Archiver archiver : openArchivers()) {
+            try {
+                if (stopped)
+                    continue;
+                archiver.rebuildLocalArchiveRollups();
+                compactor = archiver.getLocalArchiveCompactor();
+                int count = archiver.compactLocalArchive(compactor);
+                Log.i(LOG_TAG, "compacted " + count + " segments of "
+                        + archiver.getLocalArchiveSegments().getDirectory());
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                archiver.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        stopped = false;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compactAll();
+                if (!stopped)
+                    jobFinished(params, false);
+            }
+        }, "ArchiveCompactionService").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        stopped = true;
+        ArchiveCompactor current = compactor;
+        if (current != null)
+            current.cancel();
+        /* Segments left are compacted next time */
+        return true;
+    }
+}
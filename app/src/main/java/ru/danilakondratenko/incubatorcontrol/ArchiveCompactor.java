@@ -0,0 +1,136 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Rewrites cold v2 segments downsampled by retention policy. Each bucket of
+ * records becomes one record with mean temperature and humidity. Error flags
+ * keep exact transitions, so that events are found as before; states of
+ * heater and wetter are taken at bucket start, rollups keep their duty.
+ */
+public class ArchiveCompactor {
+    public static final long DAY = 86400000L;
+
+    /* Raw for 7 days, 1 minute buckets for 90 days, 15 minute buckets after that */
+    public static final long[] DEFAULT_AGES = { 7 * DAY, 90 * DAY };
+    public static final long[] DEFAULT_WIDTHS = { 60000L, 900000L };
+
+    public static final String TEMP_EXTENSION = ".compact";
+
+    private final ArchiveSegments segments;
+    private final long[] ages, widths;
+    private volatile boolean cancelled = false;
+
+    ArchiveCompactor(ArchiveSegments segments) {
+        this(segments, DEFAULT_AGES, DEFAULT_WIDTHS);
+    }
+
+    /* Segments ended ages[i] ago are downsampled to widths[i], both ascending */
+    ArchiveCompactor(ArchiveSegments segments, long[] ages, long[] widths) {
+        this.segments = segments;
+        this.ages = ages;
+        this.widths = widths;
+    }
+
+    /* Bucket width segment should have at time now, 0 to keep raw records */
+    public long getTargetWidth(ArchiveSegments.Segment segment, long now) {
+        long width = 0;
+        for (int i = 0; i < ages.length; i++) {
+            if (segment.end <= now - ages[i])
+                width = widths[i];
+        }
+        return width;
+    }
+
+    /* Stops compaction after segment being rewritten */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /* Returns number of rewritten segments, only sealed v2 ones are touched */
+    public int compact(long now) throws IOException {
+        int count = 0;
+
+        for (ArchiveSegments.Segment segment : segments.getSegments()) {
+            if (cancelled)
+                break;
+
+            long width = getTargetWidth(segment, now);
+            if (width <= segment.width)
+                continue;
+
+            File v2 = ArchiveColumns.getV2File(segment.file);
+            if (!v2.exists())
+                continue;
+
+            File temp = new File(v2.getPath() + TEMP_EXTENSION);
+            try {
+                downsample(v2, temp, width);
+                if (segments.replace(segment, temp, width))
+                    count++;
+            } finally {
+                temp.delete();
+            }
+        }
+
+        return count;
+    }
+
+    /* Writes records of v2 file merged into buckets of width into out */
+    public static void downsample(File v2, File out, long width) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+
+        /* Record being merged, temperature and humidity are summed */
+        long bucket = 0, sumTemp = 0, sumHumid = 0;
+        int n = 0;
+        byte er = 0;
+
+        ArchiveColumns.Reader reader = new ArchiveColumns.Reader(v2, null);
+        ArchiveColumns.Writer writer = new ArchiveColumns.Writer(out);
+        try {
+            ArchiveColumns.Block block = new ArchiveColumns.Block();
+            while (reader.next(Long.MIN_VALUE, Long.MAX_VALUE, ArchiveColumns.COL_ALL, block)) {
+                for (int i = 0; i < block.count; i++) {
+                    long timestamp = block.timestamps[i];
+                    long start = timestamp - ((timestamp % width) + width) % width;
+
+                    if (n > 0 && (start != bucket || block.er[i] != er)) {
+                        putMean(record, sumTemp, sumHumid, n);
+                        writer.append(record, 0);
+                        n = 0;
+                    }
+
+                    if (n == 0) {
+                        bucket = start;
+                        er = block.er[i];
+                        sumTemp = 0;
+                        sumHumid = 0;
+                        block.toRecord(i, record, 0);
+                    }
+                    sumTemp += block.curTemps[i];
+                    sumHumid += block.curHumids[i];
+                    n++;
+                }
+            }
+
+            if (n > 0) {
+                putMean(record, sumTemp, sumHumid, n);
+                writer.append(record, 0);
+            }
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    private static void putMean(ByteBuffer record, long sumTemp, long sumHumid, int n) {
+        record.putShort(Archiver.CUR_TEMP, (short) Math.round((double) sumTemp / n));
+        record.putShort(Archiver.CUR_HUMID, (short) Math.round((double) sumHumid / n));
+    }
+}
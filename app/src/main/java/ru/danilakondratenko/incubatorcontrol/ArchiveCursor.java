@@ -0,0 +1,223 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/*
+ * Forward-only reader over [mintime, maxtime) of local archive.
+ * Records are loaded in batches of fixed size, one segment is open at a time.
+ */
+public class ArchiveCursor implements Closeable {
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    private final List<ArchiveSegments.Segment> segments;
+    private final long mintime, maxtime;
+    private final int batchSize;
+    private final ArchiveSeries batch;
+
+    private int segment = 0;
+    private int position = -1;
+
+    /* Open v1 segment mapped from mapBase, records [mapPosition, mapEnd) are not read yet */
+    private FileInputStream istream;
+    private MappedByteBuffer map;
+    private long mapBase, mapPosition, mapEnd;
+
+    /* Open v2 segment, records from blockPosition of block are not read yet */
+    private ArchiveColumns.Reader reader;
+    private ArchiveColumns.Block block;
+    private int blockPosition;
+
+    ArchiveCursor(List<ArchiveSegments.Segment> segments, long mintime, long maxtime,
+                  int batchSize) {
+        this.segments = segments;
+        this.mintime = mintime;
+        this.maxtime = maxtime;
+        this.batchSize = Math.max(batchSize, 1);
+        this.batch = new ArchiveSeries(this.batchSize);
+    }
+
+    private long getMappedTimestamp(long record) {
+        return map.getLong((int)(ArchiveFrames.getRecordOffset(record) - mapBase)
+                + Archiver.TIMESTAMP);
+    }
+
+    /* Returns number of first record in [low, high) with timestamp not less than time */
+    private long findMappedRecord(long low, long high, long time) {
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (getMappedTimestamp(mid) < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+
+    private void openV2(File v2) throws IOException {
+        reader = new ArchiveColumns.Reader(v2);
+        if (block == null)
+            block = new ArchiveColumns.Block();
+        block.count = 0;
+        blockPosition = 0;
+    }
+
+    /* Opens next segment having data in range, returns false when there are no more */
+    private boolean openSegment() throws IOException {
+        while (segment < segments.size()) {
+            File file = segments.get(segment++).file;
+
+            File v2 = ArchiveColumns.getV2File(file);
+            if (v2.exists()) {
+                openV2(v2);
+                return true;
+            }
+
+            /* Snapshot of committed data, records appended later are not seen */
+            long length;
+            try {
+                length = ArchiveCommits.getCommittedLength(file);
+                istream = new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                /* Migrated since v2 was checked, v1 data is gone */
+                if (!v2.exists())
+                    continue;
+                openV2(v2);
+                return true;
+            }
+            FileChannel channel = istream.getChannel();
+
+            /* Sparse index narrows the mapped window to the requested range */
+            ArchiveIndex index = ArchiveIndex.open(file);
+            long first = ArchiveFrames.getRecordCount(index.getStartOffset(mintime));
+            long last = ArchiveFrames.getRecordCount(index.getEndOffset(maxtime, length));
+            if (last <= first) {
+                closeSegment();
+                continue;
+            }
+
+            mapBase = ArchiveFrames.getRecordOffset(first);
+            long mapLength = ArchiveFrames.getRecordOffset(last - 1)
+                    + Archiver.RECORD_SIZE - mapBase;
+            if (mapLength > Integer.MAX_VALUE) {
+                last = first + ArchiveFrames.getRecordCount(Integer.MAX_VALUE);
+                mapLength = ArchiveFrames.getRecordOffset(last - 1)
+                        + Archiver.RECORD_SIZE - mapBase;
+            }
+
+            map = channel.map(FileChannel.MapMode.READ_ONLY, mapBase, mapLength);
+            mapPosition = findMappedRecord(first, last, mintime);
+            mapEnd = findMappedRecord(mapPosition, last, maxtime);
+            return true;
+        }
+        return false;
+    }
+
+    private void closeSegment() throws IOException {
+        map = null;
+        if (istream != null) {
+            istream.close();
+            istream = null;
+        }
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    /* Appends records of open segment to batch, returns false when segment is exhausted */
+    private boolean fillBatch() {
+        if (map != null) {
+            long last = Math.min(mapEnd, mapPosition + batchSize - batch.size());
+            for (long i = mapPosition; i < last; i++)
+                batch.addRecord(map, (int)(ArchiveFrames.getRecordOffset(i) - mapBase));
+            mapPosition = last;
+            return mapPosition < mapEnd;
+        }
+
+        while (batch.size() < batchSize) {
+            if (blockPosition >= block.count) {
+                if (!reader.next(mintime, maxtime, ArchiveColumns.COL_ALL, block))
+                    return false;
+                blockPosition = 0;
+            }
+
+            for (; blockPosition < block.count && batch.size() < batchSize; blockPosition++) {
+                long timestamp = block.timestamps[blockPosition];
+                if (timestamp < mintime || timestamp >= maxtime)
+                    continue;
+                batch.add(timestamp, block.curTemps[blockPosition],
+                        block.curHumids[blockPosition], block.st[blockPosition],
+                        block.neededTemps[blockPosition], block.neededHumids[blockPosition],
+                        block.er[blockPosition]);
+            }
+        }
+        return true;
+    }
+
+    /* Loads up to batch size next records, returns false at end of range */
+    public boolean nextBatch() throws IOException {
+        batch.clear();
+        position = -1;
+
+        while (batch.size() < batchSize) {
+            if (map == null && reader == null && !openSegment())
+                break;
+            if (!fillBatch())
+                closeSegment();
+        }
+
+        return !batch.isEmpty();
+    }
+
+    /* Current batch, valid until next call of nextBatch() or next() */
+    public ArchiveSeries getBatch() {
+        return batch;
+    }
+
+    /* Moves to next record, returns false at end of range */
+    public boolean next() throws IOException {
+        if (position + 1 < batch.size()) {
+            position++;
+            return true;
+        }
+        if (!nextBatch())
+            return false;
+        position = 0;
+        return true;
+    }
+
+    /* Index of current record in getBatch() */
+    public int getPosition() {
+        return position;
+    }
+
+    public long getTimestamp() {
+        return batch.getTimestamp(position);
+    }
+
+    /* Writes current record at offset of buffer in archive record layout */
+    public void getRecord(ByteBuffer bb, int offset) {
+        batch.getRecord(position, bb, offset);
+    }
+
+    public ArchiveRecord toRecord() {
+        return batch.toRecord(position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+        segment = segments.size();
+        batch.clear();
+        position = -1;
+    }
+}
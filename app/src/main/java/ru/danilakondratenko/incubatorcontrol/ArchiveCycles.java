@@ -0,0 +1,157 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Index of incubation cycles of archive. Incubator uptime is reset when
+ * incubation starts, so each record carries start of its cycle estimated as
+ * timestamp minus uptime, and a cycle begins where that start moves forward.
+ */
+public class ArchiveCycles {
+    public static final String CYCLES_FILE_NAME = "cycles.txt";
+    public static final long UNKNOWN = Long.MIN_VALUE;
+
+    /* Uptime is in seconds and read with network delay, so estimates jitter */
+    public static final long DEFAULT_TOLERANCE = 600000L;
+
+    public static class Cycle {
+        public final long start, end;
+
+        Cycle(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public boolean contains(long timestamp) {
+            return timestamp >= start && timestamp < end;
+        }
+
+        /* Milliseconds of incubation at timestamp */
+        public long getElapsed(long timestamp) {
+            return timestamp - start;
+        }
+    }
+
+    private static final HashMap<String, ArchiveCycles> opened = new HashMap<>();
+
+    private final File file;
+    private final long tolerance;
+
+    /* Sorted starts of cycles, each cycle lasts until the next one */
+    private final ArrayList<Long> starts = new ArrayList<>();
+
+    /* One instance per archive directory, so that all archivers in process see the same cycles */
+    public static synchronized ArchiveCycles open(File dir) throws IOException {
+        String key = dir.getAbsolutePath();
+        ArchiveCycles result = opened.get(key);
+        if (result == null) {
+            result = new ArchiveCycles(new File(dir, CYCLES_FILE_NAME), DEFAULT_TOLERANCE);
+            opened.put(key, result);
+        }
+        return result;
+    }
+
+    ArchiveCycles(File file, long tolerance) throws IOException {
+        this.file = file;
+        this.tolerance = tolerance;
+        load();
+    }
+
+    /* Start of incubation by state of incubator, UNKNOWN if incubator is not running */
+    public static long getCycleStart(IncubatorState state) {
+        if (state.uptime <= 0 || !state.internet || !state.power)
+            return UNKNOWN;
+        return state.timestamp - state.uptime * 1000;
+    }
+
+    /* Returns true if record starts new cycle */
+    public synchronized boolean onRecord(long cycleStart) throws IOException {
+        if (cycleStart == UNKNOWN)
+            return false;
+        if (!starts.isEmpty() && cycleStart <= starts.get(starts.size() - 1) + tolerance)
+            return false;
+
+        starts.add(cycleStart);
+        try {
+            save();
+        } catch (IOException e) {
+            starts.remove(starts.size() - 1);
+            throw e;
+        }
+        return true;
+    }
+
+    public synchronized List<Cycle> getCycles() {
+        ArrayList<Cycle> result = new ArrayList<>(starts.size());
+        for (int i = 0; i < starts.size(); i++) {
+            long end = (i + 1 < starts.size()) ? starts.get(i + 1) : Long.MAX_VALUE;
+            result.add(new Cycle(starts.get(i), end));
+        }
+        return result;
+    }
+
+    /* Cycle containing timestamp or null if it is before the first one */
+    public synchronized Cycle findCycle(long timestamp) {
+        int low = 0, high = starts.size() - 1, found = -1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (starts.get(mid) <= timestamp) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (found < 0)
+            return null;
+        long end = (found + 1 < starts.size()) ? starts.get(found + 1) : Long.MAX_VALUE;
+        return new Cycle(starts.get(found), end);
+    }
+
+    private void load() throws IOException {
+        starts.clear();
+        if (!file.exists())
+            return;
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] args = line.trim().split(" ");
+                if (args.length == 2 && args[0].compareTo("cycle") == 0)
+                    starts.add(Long.parseLong(args[1]));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void save() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+
+        FileOutputStream fos = new FileOutputStream(temp);
+        PrintStream ps = new PrintStream(fos);
+        try {
+            for (long start : starts)
+                ps.printf(Locale.US, "cycle %d\n", start);
+            ps.flush();
+            fos.getFD().sync();
+        } finally {
+            ps.close();
+        }
+
+        if (!temp.renameTo(file))
+            throw new IOException("Cannot replace cycle index");
+    }
+}
@@ -0,0 +1,16 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+/* Time interval where an event expression held */
+public class ArchiveEvent {
+    public long start;
+    public long end;
+
+    ArchiveEvent(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getDuration() {
+        return end - start;
+    }
+}
@@ -0,0 +1,185 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/*
+ * Boolean expression over record flags, e.g. "OVERHEAT OR CHAMBER_ERROR".
+ * Operators are NOT, AND, OR (also !, &, |) and parentheses.
+ */
+public class ArchiveEventExpression {
+    /* Flag names, bits of ArchiveFlagIndex flags word */
+    private static final String[] NAMES = {
+            "HEATER", "WETTER", "COOLER", "POWER",
+            "OVERHEAT", "CHAMBER_ERROR", "NO_INTERNET"
+    };
+    private static final int[] BITS = {
+            Archiver.ST_HEATER,
+            Archiver.ST_WETTER,
+            Archiver.ST_COOLER,
+            Archiver.ST_POWER,
+            (Archiver.ER_OVERHEAT & 0xFF) << ArchiveFlagIndex.ER_SHIFT,
+            (Archiver.ER_CHAMBER_ERROR & 0xFF) << ArchiveFlagIndex.ER_SHIFT,
+            (Archiver.ER_NO_INTERNET & 0xFF) << ArchiveFlagIndex.ER_SHIFT
+    };
+
+    /* Program operations, non-negative ones push flag bit */
+    private static final int OP_NOT = -1;
+    private static final int OP_AND = -2;
+    private static final int OP_OR = -3;
+
+    private final String text;
+    private final int[] program;
+    private final int mask;
+    private final boolean[] stack;
+
+    private ArchiveEventExpression(String text, int[] program, int mask, int depth) {
+        this.text = text;
+        this.program = program;
+        this.mask = mask;
+        this.stack = new boolean[depth];
+    }
+
+    public static ArchiveEventExpression parse(String text) {
+        Parser parser = new Parser(text);
+        parser.parseOr();
+        if (parser.position < parser.tokens.size())
+            throw new IllegalArgumentException("Unexpected " + parser.tokens.get(parser.position)
+                    + " in event expression " + text);
+
+        int[] program = new int[parser.program.size()];
+        for (int i = 0; i < program.length; i++)
+            program[i] = parser.program.get(i);
+        return new ArchiveEventExpression(text, program, parser.mask, parser.maxDepth);
+    }
+
+    /* Bits of flags word used by expression */
+    public int getMask() {
+        return mask;
+    }
+
+    public synchronized boolean matches(int flags) {
+        int top = 0;
+        for (int op : program) {
+            switch (op) {
+                case OP_NOT:
+                    stack[top - 1] = !stack[top - 1];
+                    break;
+                case OP_AND:
+                    top--;
+                    stack[top - 1] = stack[top - 1] && stack[top];
+                    break;
+                case OP_OR:
+                    top--;
+                    stack[top - 1] = stack[top - 1] || stack[top];
+                    break;
+                default:
+                    stack[top++] = (flags & (1 << op)) != 0;
+                    break;
+            }
+        }
+        return stack[0];
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /* Recursive descent parser emitting postfix program */
+    private static class Parser {
+        final ArrayList<String> tokens = new ArrayList<>();
+        final ArrayList<Integer> program = new ArrayList<>();
+        final String text;
+        int position = 0;
+        int mask = 0;
+        int depth = 0, maxDepth = 0;
+
+        Parser(String text) {
+            this.text = text;
+
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (Character.isLetterOrDigit(c) || c == '_') {
+                    token.append(c);
+                    continue;
+                }
+                if (token.length() > 0) {
+                    tokens.add(token.toString().toUpperCase(Locale.US));
+                    token.setLength(0);
+                }
+                if (c == '(' || c == ')' || c == '!' || c == '&' || c == '|')
+                    tokens.add(String.valueOf(c));
+                else if (!Character.isWhitespace(c))
+                    throw new IllegalArgumentException("Unexpected " + c
+                            + " in event expression " + text);
+            }
+            if (token.length() > 0)
+                tokens.add(token.toString().toUpperCase(Locale.US));
+        }
+
+        private boolean accept(String a, String b) {
+            if (position < tokens.size()
+                    && (tokens.get(position).equals(a) || tokens.get(position).equals(b))) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void emit(int op) {
+            program.add(op);
+            if (op >= 0) {
+                depth++;
+                maxDepth = Math.max(maxDepth, depth);
+            } else if (op != OP_NOT) {
+                depth--;
+            }
+        }
+
+        void parseOr() {
+            parseAnd();
+            while (accept("OR", "|")) {
+                parseAnd();
+                emit(OP_OR);
+            }
+        }
+
+        void parseAnd() {
+            parseNot();
+            while (accept("AND", "&")) {
+                parseNot();
+                emit(OP_AND);
+            }
+        }
+
+        void parseNot() {
+            if (accept("NOT", "!")) {
+                parseNot();
+                emit(OP_NOT);
+                return;
+            }
+            if (accept("(", "(")) {
+                parseOr();
+                if (!accept(")", ")"))
+                    throw new IllegalArgumentException("Missing ) in event expression " + text);
+                return;
+            }
+            if (position == tokens.size())
+                throw new IllegalArgumentException("Unexpected end of event expression " + text);
+
+            String name = tokens.get(position++);
+            for (int i = 0; i < NAMES.length; i++) {
+                if (NAMES[i].equals(name)) {
+                    int bit = Integer.numberOfTrailingZeros(BITS[i]);
+                    mask |= 1 << bit;
+                    emit(bit);
+                    return;
+                }
+            }
+            throw new IllegalArgumentException("Unknown flag " + name
+                    + " in event expression " + text);
+        }
+    }
+}
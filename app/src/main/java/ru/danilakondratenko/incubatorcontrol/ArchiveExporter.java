@@ -0,0 +1,223 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/* Streams archive range to CSV or to archive v2 file with constant memory */
+public class ArchiveExporter {
+    /* Export formats */
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_BINARY = 1; /* Same layout as archive v2 segment files */
+
+    public static final int CHUNK_RECORDS = ArchiveColumns.BLOCK_RECORDS;
+
+    public static final String CSV_HEADER = "timestamp,current_temperature,current_humidity,"
+            + "needed_temperature,needed_humidity,heater,wetter,cooler,chamber,power,"
+            + "overheat,chamber_error,no_internet,st,er\n";
+
+    /* Maximum CSV line length */
+    private static final int CSV_LINE = 128;
+
+    public interface Listener {
+        /* Called after every chunk, returns false to cancel export */
+        boolean onProgress(long records, float fraction);
+    }
+
+    private final long mintime, maxtime;
+    private final int format;
+
+    private final byte[] text = new byte[CHUNK_RECORDS * CSV_LINE];
+    private final ByteBuffer records;
+    private final ByteBuffer encoded;
+    private final byte[] encodedBytes;
+    private int length;
+
+    ArchiveExporter(long mintime, long maxtime, int format) {
+        this.mintime = mintime;
+        this.maxtime = maxtime;
+        this.format = format;
+
+        if (format == FORMAT_BINARY) {
+            this.records = ByteBuffer.allocate(CHUNK_RECORDS * Archiver.RECORD_SIZE);
+            this.encodedBytes = new byte[ArchiveColumns.BLOCK_HEADER_SIZE + ArchiveColumns.COLUMNS
+                    + CHUNK_RECORDS * ArchiveColumns.COLUMNS * 20];
+            this.encoded = ByteBuffer.wrap(encodedBytes);
+        } else {
+            this.records = null;
+            this.encodedBytes = null;
+            this.encoded = null;
+        }
+    }
+
+    /*
+     * Writes records of cursor to out, span bounds the progress fraction.
+     * Returns number of exported records or -1 if cancelled.
+     */
+    public long export(ArchiveCursor cursor, long spanStart, long spanEnd, OutputStream out,
+                       Listener listener) throws IOException {
+        long exported = 0;
+        long begin = Math.max(mintime, spanStart);
+        long end = Math.min(maxtime, spanEnd);
+
+        writeHeader(out);
+
+        while (cursor.nextBatch()) {
+            ArchiveSeries batch = cursor.getBatch();
+
+            if (format == FORMAT_BINARY)
+                writeBlock(batch, out);
+            else
+                writeCsv(batch, out);
+            exported += batch.size();
+
+            if (listener != null) {
+                long last = batch.getTimestamp(batch.size() - 1);
+                float fraction = (end > begin)
+                        ? Math.min(1.0f, Math.max(0.0f, (float)(last - begin) / (end - begin)))
+                        : 1.0f;
+                if (!listener.onProgress(exported, fraction))
+                    return -1;
+            }
+        }
+
+        out.flush();
+        if (listener != null)
+            listener.onProgress(exported, 1.0f);
+        return exported;
+    }
+
+    private void writeHeader(OutputStream out) throws IOException {
+        if (format == FORMAT_BINARY) {
+            encoded.clear();
+            encoded.putInt(ArchiveColumns.MAGIC);
+            encoded.putInt(ArchiveColumns.VERSION);
+            out.write(encodedBytes, 0, encoded.position());
+        } else {
+            length = 0;
+            for (int i = 0; i < CSV_HEADER.length(); i++)
+                text[length++] = (byte) CSV_HEADER.charAt(i);
+            out.write(text, 0, length);
+        }
+    }
+
+    private void writeBlock(ArchiveSeries batch, OutputStream out) throws IOException {
+        for (int i = 0; i < batch.size(); i++)
+            batch.getRecord(i, records, i * Archiver.RECORD_SIZE);
+
+        encoded.clear();
+        int blockLength = ArchiveColumns.encodeBlock(records, 0, batch.size(), encoded);
+        out.write(encodedBytes, 0, blockLength);
+    }
+
+    /* CSV is formatted by hand, String.format is too slow for millions of lines */
+
+    private void putChar(char c) {
+        text[length++] = (byte) c;
+    }
+
+    private void putString(String s) {
+        for (int i = 0; i < s.length(); i++)
+            text[length++] = (byte) s.charAt(i);
+    }
+
+    private void putLong(long value) {
+        if (value < 0) {
+            putChar('-');
+            value = -value;
+        }
+
+        int start = length;
+        do {
+            text[length++] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte t = text[i];
+            text[i] = text[j];
+            text[j] = t;
+        }
+    }
+
+    /* Writes value / divisor rounded to given number of decimals */
+    private void putFixed(long value, long divisor, int decimals) {
+        long scale = 1;
+        for (int i = 0; i < decimals; i++)
+            scale *= 10;
+
+        long scaled = value * scale;
+        long rounded = (scaled >= 0)
+                ? (scaled + divisor / 2) / divisor
+                : -((-scaled + divisor / 2) / divisor);
+        if (rounded < 0) {
+            putChar('-');
+            rounded = -rounded;
+        }
+
+        putLong(rounded / scale);
+        if (decimals == 0)
+            return;
+        putChar('.');
+        long fraction = rounded % scale;
+        for (long d = scale / 10; d > 0; d /= 10) {
+            putChar((char)('0' + fraction / d));
+            fraction %= d;
+        }
+    }
+
+    private void putFlag(boolean flag) {
+        putChar(flag ? '1' : '0');
+        putChar(',');
+    }
+
+    private static String chamberName(byte st) {
+        switch (st & Archiver.ST_CHAMBER) {
+            case Archiver.ST_CHAMBER_LEFT:
+                return "left";
+            case Archiver.ST_CHAMBER_RIGHT:
+                return "right";
+            case Archiver.ST_CHAMBER_ERROR:
+                return "error";
+            case Archiver.ST_CHAMBER_UNDEF:
+                return "undefined";
+            default:
+                return "neutral";
+        }
+    }
+
+    private void writeCsv(ArchiveSeries batch, OutputStream out) throws IOException {
+        length = 0;
+
+        for (int i = 0; i < batch.size(); i++) {
+            byte st = batch.getState(i);
+            byte er = batch.getErrors(i);
+
+            putLong(batch.getTimestamp(i));
+            putChar(',');
+            putFixed((long)(batch.getCurrentTemperature(i) * 256), 256, 2);
+            putChar(',');
+            putFixed((long)(batch.getCurrentHumidity(i) * 256), 256, 2);
+            putChar(',');
+            putFixed((long)(batch.getNeededTemperature(i) * 10 + 0.5f), 10, 1);
+            putChar(',');
+            putLong((long) batch.getNeededHumidity(i));
+            putChar(',');
+            putFlag((st & Archiver.ST_HEATER) != 0);
+            putFlag((st & Archiver.ST_WETTER) != 0);
+            putFlag((st & Archiver.ST_COOLER) != 0);
+            putString(chamberName(st));
+            putChar(',');
+            putFlag((st & Archiver.ST_POWER) != 0);
+            putFlag((er & Archiver.ER_OVERHEAT) != 0);
+            putFlag((er & Archiver.ER_CHAMBER_ERROR) != 0);
+            putFlag((er & Archiver.ER_NO_INTERNET) != 0);
+            putLong(st & 0xFF);
+            putChar(',');
+            putLong(er & 0xFF);
+            putChar('\n');
+        }
+
+        out.write(text, 0, length);
+    }
+}
@@ -0,0 +1,181 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Write-side swinging door filter. Dropped records are restored by linear
+ * interpolation of temperature and humidity between kept records within the
+ * error bound, state and error flags hold their value until next kept record.
+ */
+public class ArchiveFilter {
+    /* Filter defaults */
+    public static final long DEFAULT_MAX_INTERVAL = 60000;
+
+    public static final int DUPLICATE = -1;
+
+    /* Filtered channels */
+    private static final int CHANNELS = 2;
+    private static final int[] CHANNEL_INDEXES = { Archiver.CUR_TEMP, Archiver.CUR_HUMID };
+
+    /* Bounds in record encoding */
+    private final double[] errors = new double[CHANNELS];
+    private final long maxInterval;
+
+    /* Last kept record */
+    private final ByteBuffer anchor = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+    private boolean hasAnchor = false;
+
+    /* Last offered record, not written yet */
+    private final ByteBuffer held = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+    private boolean hasHeld = false;
+
+    /* Slopes from anchor keeping all held-back records within the bound */
+    private final double[] lower = new double[CHANNELS];
+    private final double[] upper = new double[CHANNELS];
+
+    /* Records to write after offer() or flush() */
+    private final ByteBuffer output = ByteBuffer.allocate(2 * Archiver.RECORD_SIZE);
+    private int outputCount;
+
+    /* Filter statistics */
+    private long recordsOffered = 0;
+    private long recordsKept = 0;
+    private long duplicatesDropped = 0;
+
+    ArchiveFilter(float temperatureError, float humidityError) {
+        this(temperatureError, humidityError, DEFAULT_MAX_INTERVAL);
+    }
+
+    ArchiveFilter(float temperatureError, float humidityError, long maxInterval) {
+        this.errors[0] = Math.max(temperatureError, 0) * 256.0;
+        this.errors[1] = Math.max(humidityError, 0) * 256.0;
+        this.maxInterval = maxInterval;
+    }
+
+    /* Kept records are at offsets 0 and RECORD_SIZE */
+    public ByteBuffer getOutput() {
+        return output;
+    }
+
+    private static boolean sameFlags(ByteBuffer a, ByteBuffer b, int offset) {
+        return a.getInt(Archiver.ST) == b.getInt(offset + Archiver.ST);
+    }
+
+    private static boolean sameRecord(ByteBuffer a, ByteBuffer b, int offset) {
+        return a.getLong(0) == b.getLong(offset) && a.getLong(8) == b.getLong(offset + 8);
+    }
+
+    private static void copy(ByteBuffer src, int offset, ByteBuffer dst, int dstOffset) {
+        dst.putLong(dstOffset, src.getLong(offset));
+        dst.putLong(dstOffset + 8, src.getLong(offset + 8));
+    }
+
+    private void keep(ByteBuffer src, int offset) {
+        copy(src, offset, output, outputCount * Archiver.RECORD_SIZE);
+        copy(src, offset, anchor, 0);
+        hasAnchor = true;
+        outputCount++;
+        recordsKept++;
+    }
+
+    private double slope(ByteBuffer record, int offset, int channel, double shift) {
+        double dt = record.getLong(offset + Archiver.TIMESTAMP)
+                - anchor.getLong(Archiver.TIMESTAMP);
+        double dv = record.getShort(offset + CHANNEL_INDEXES[channel])
+                - anchor.getShort(CHANNEL_INDEXES[channel]);
+        return (dv + shift) / dt;
+    }
+
+    /* Starts a new door at anchor through record */
+    private void open(ByteBuffer record, int offset) {
+        for (int c = 0; c < CHANNELS; c++) {
+            lower[c] = slope(record, offset, c, -errors[c]);
+            upper[c] = slope(record, offset, c, errors[c]);
+        }
+        copy(record, offset, held, 0);
+        hasHeld = true;
+    }
+
+    /*
+     * Offers record at offset, returns number of records to write from
+     * getOutput() or DUPLICATE if record repeats the previous one.
+     */
+    public int offer(ByteBuffer record, int offset) {
+        outputCount = 0;
+
+        ByteBuffer previous = hasHeld ? held : anchor;
+        long timestamp = record.getLong(offset + Archiver.TIMESTAMP);
+
+        if (hasAnchor && sameRecord(previous, record, offset)) {
+            duplicatesDropped++;
+            return DUPLICATE;
+        }
+        recordsOffered++;
+
+        if (!hasAnchor) {
+            keep(record, offset);
+            return outputCount;
+        }
+
+        long previousTimestamp = previous.getLong(Archiver.TIMESTAMP);
+
+        /* Flag changes, gaps and time going back are never interpolated over */
+        if (!sameFlags(previous, record, offset)
+                || timestamp <= previousTimestamp
+                || timestamp - previousTimestamp > maxInterval) {
+            if (hasHeld)
+                keep(held, 0);
+            hasHeld = false;
+            keep(record, offset);
+            return outputCount;
+        }
+
+        if (!hasHeld) {
+            open(record, offset);
+            return 0;
+        }
+
+        /* Line from anchor to record must pass within bound of every held-back record */
+        boolean inside = timestamp - anchor.getLong(Archiver.TIMESTAMP) <= maxInterval;
+        for (int c = 0; c < CHANNELS && inside; c++) {
+            double s = slope(record, offset, c, 0);
+            inside = s >= lower[c] && s <= upper[c];
+        }
+
+        if (!inside) {
+            keep(held, 0);
+            open(record, offset);
+            return outputCount;
+        }
+
+        for (int c = 0; c < CHANNELS; c++) {
+            lower[c] = Math.max(lower[c], slope(record, offset, c, -errors[c]));
+            upper[c] = Math.min(upper[c], slope(record, offset, c, errors[c]));
+        }
+        copy(record, offset, held, 0);
+        return 0;
+    }
+
+    /* Releases held-back record, returns number of records to write from getOutput() */
+    public int flush() {
+        outputCount = 0;
+
+        if (hasHeld) {
+            keep(held, 0);
+            hasHeld = false;
+        }
+        return outputCount;
+    }
+
+    public long getRecordsOffered() {
+        return recordsOffered;
+    }
+
+    public long getRecordsKept() {
+        return recordsKept;
+    }
+
+    public long getDuplicatesDropped() {
+        return duplicatesDropped;
+    }
+}
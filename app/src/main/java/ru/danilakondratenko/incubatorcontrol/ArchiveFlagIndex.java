@@ -0,0 +1,450 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Run-length encoded bitmaps over record numbers of a segment, one per bit
+ * of ST and ER. Sidecar keeps records where flags change, bitmaps are
+ * rebuilt from it on open and then extended as records are written.
+ */
+public class ArchiveFlagIndex {
+    /* Sidecar constants */
+    public static final String FLAGS_EXTENSION = ".flg";
+    public static final int ENTRY_SIZE = 16;
+
+    /* Sidecar entry fields */
+    public static final int ENTRY_RECORD = 0;
+    public static final int ENTRY_FLAGS = 4;
+    public static final int ENTRY_TIMESTAMP = 8;
+
+    /* Flags word holds ST in bits 0-7 and ER in bits 8-15 */
+    public static final int FLAG_BITS = 16;
+    public static final int ER_SHIFT = 8;
+
+    private static final HashMap<String, ArchiveFlagIndex> opened = new HashMap<>();
+
+    /* Runs [start, end) of records with bit set, last one is open while bit is still set */
+    private static class Runs {
+        int[] starts = new int[4], ends = new int[4];
+        long[] startTimes = new long[4], endTimes = new long[4];
+        int count = 0;
+        boolean open = false;
+
+        void begin(int record, long timestamp) {
+            if (count == starts.length) {
+                int[] newStarts = new int[count * 2];
+                int[] newEnds = new int[count * 2];
+                long[] newStartTimes = new long[count * 2];
+                long[] newEndTimes = new long[count * 2];
+                System.arraycopy(starts, 0, newStarts, 0, count);
+                System.arraycopy(ends, 0, newEnds, 0, count);
+                System.arraycopy(startTimes, 0, newStartTimes, 0, count);
+                System.arraycopy(endTimes, 0, newEndTimes, 0, count);
+                starts = newStarts;
+                ends = newEnds;
+                startTimes = newStartTimes;
+                endTimes = newEndTimes;
+            }
+            starts[count] = record;
+            startTimes[count] = timestamp;
+            count++;
+            open = true;
+        }
+
+        void end(int record, long timestamp) {
+            ends[count - 1] = record;
+            endTimes[count - 1] = timestamp;
+            open = false;
+        }
+    }
+
+    private final File dataFile, flagsFile;
+    private final Runs[] runs = new Runs[FLAG_BITS];
+
+    /* Records [0, records) are indexed */
+    private int records;
+    private int lastFlags;
+    private long firstTimestamp, lastTimestamp;
+    private int lastLogged = -1;
+
+    /* One instance per data file, shared by writer and readers */
+    public static synchronized ArchiveFlagIndex open(File dataFile) throws IOException {
+        String key = dataFile.getAbsolutePath();
+        ArchiveFlagIndex result = opened.get(key);
+        if (result == null) {
+            result = new ArchiveFlagIndex(dataFile);
+            opened.put(key, result);
+        }
+        result.sync();
+        return result;
+    }
+
+    public static synchronized void forget(File dataFile) {
+        ArchiveFlagIndex index = opened.remove(dataFile.getAbsolutePath());
+        File flagsFile = (index != null) ? index.flagsFile : getFlagsFile(dataFile);
+        flagsFile.delete();
+    }
+
+    public static File getFlagsFile(File dataFile) {
+        String name = dataFile.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0)
+            name = name.substring(0, dot);
+        return new File(dataFile.getParentFile(), name + FLAGS_EXTENSION);
+    }
+
+    public static int getFlags(byte st, byte er) {
+        return (st & 0xFF) | ((er & 0xFF) << ER_SHIFT);
+    }
+
+    private ArchiveFlagIndex(File dataFile) throws IOException {
+        this.dataFile = dataFile;
+        this.flagsFile = getFlagsFile(dataFile);
+
+        if (!load())
+            rebuild();
+    }
+
+    private void clear() {
+        for (int i = 0; i < FLAG_BITS; i++)
+            runs[i] = new Runs();
+        records = 0;
+        lastFlags = 0;
+        firstTimestamp = 0;
+        lastTimestamp = 0;
+        lastLogged = -1;
+    }
+
+    /* Applies flags of record, records skipped since last call kept previous flags */
+    private boolean apply(int record, long timestamp, int flags) {
+        int changed = (records == 0) ? flags : flags ^ lastFlags;
+        if (records == 0)
+            firstTimestamp = timestamp;
+
+        for (int bit = 0; bit < FLAG_BITS; bit++) {
+            if ((changed & (1 << bit)) == 0)
+                continue;
+            if ((flags & (1 << bit)) != 0)
+                runs[bit].begin(record, timestamp);
+            else
+                runs[bit].end(record, timestamp);
+        }
+
+        boolean log = records == 0 || changed != 0;
+        records = record + 1;
+        lastFlags = flags;
+        lastTimestamp = timestamp;
+        return log;
+    }
+
+    private static void putEntry(ByteBuffer bb, int record, int flags, long timestamp) {
+        int entry = bb.position();
+        bb.putInt(entry + ENTRY_RECORD, record);
+        bb.putInt(entry + ENTRY_FLAGS, flags);
+        bb.putLong(entry + ENTRY_TIMESTAMP, timestamp);
+        bb.position(entry + ENTRY_SIZE);
+    }
+
+    private void writeEntries(ByteBuffer bb) throws IOException {
+        if (bb.position() == 0)
+            return;
+
+        FileOutputStream fos = new FileOutputStream(flagsFile, true);
+        try {
+            fos.write(bb.array(), 0, bb.position());
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static long recordCount(File dataFile) throws IOException {
+        return ArchiveCommits.getCommittedRecords(dataFile);
+    }
+
+    /* Returns false when sidecar is unusable and must be rebuilt */
+    private boolean load() throws IOException {
+        clear();
+        if (!flagsFile.exists())
+            return false;
+        if (flagsFile.length() % ENTRY_SIZE != 0)
+            return false;
+
+        RandomAccessFile raf = new RandomAccessFile(flagsFile, "r");
+        ByteBuffer bb;
+        try {
+            bb = ByteBuffer.allocate((int) raf.length());
+            FileChannel channel = raf.getChannel();
+            while (bb.hasRemaining()) {
+                if (channel.read(bb) == -1)
+                    break;
+            }
+            bb.flip();
+        } finally {
+            raf.close();
+        }
+
+        while (bb.remaining() >= ENTRY_SIZE) {
+            int entry = bb.position();
+            int record = bb.getInt(entry + ENTRY_RECORD);
+            if (record < records)
+                return false;
+            apply(record, bb.getLong(entry + ENTRY_TIMESTAMP), bb.getInt(entry + ENTRY_FLAGS));
+            lastLogged = record;
+            bb.position(entry + ENTRY_SIZE);
+        }
+
+        /* Entries past the end of data were left by a torn write */
+        return !dataFile.exists() || records <= recordCount(dataFile);
+    }
+
+    private void rebuild() throws IOException {
+        clear();
+        if (flagsFile.exists() && !flagsFile.delete())
+            throw new IOException("Cannot remove stale flag index " + flagsFile);
+
+        if (dataFile.exists()) {
+            sync();
+            return;
+        }
+
+        File v2 = ArchiveColumns.getV2File(dataFile);
+        if (!v2.exists())
+            return;
+
+        ArchiveColumns.Reader reader = new ArchiveColumns.Reader(v2);
+        try {
+            ArchiveColumns.Block block = new ArchiveColumns.Block();
+            while (reader.next(Long.MIN_VALUE, Long.MAX_VALUE, ArchiveColumns.COL_ALL, block)) {
+                ByteBuffer bb = ByteBuffer.allocate(block.count * ENTRY_SIZE);
+                for (int i = 0; i < block.count; i++) {
+                    int record = records;
+                    int flags = getFlags(block.st[i], block.er[i]);
+                    if (apply(record, block.timestamps[i], flags)) {
+                        putEntry(bb, record, flags, block.timestamps[i]);
+                        lastLogged = record;
+                    }
+                }
+                writeEntries(bb);
+            }
+        } finally {
+            reader.close();
+        }
+        seal();
+    }
+
+    /* Indexes records appended to data file since last call */
+    public synchronized void sync() throws IOException {
+        if (!dataFile.exists())
+            return;
+
+        long count = recordCount(dataFile);
+        if (count < records) {
+            rebuild();
+            return;
+        }
+        if (count == records)
+            return;
+
+        FileInputStream istream = new FileInputStream(dataFile);
+        try {
+            long base = ArchiveFrames.getRecordOffset(records);
+            long end = ArchiveFrames.getRecordOffset(count - 1) + Archiver.RECORD_SIZE;
+            MappedByteBuffer map = istream.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, base, end - base);
+            ByteBuffer bb = ByteBuffer.allocate((int)(count - records) * ENTRY_SIZE);
+
+            for (int record = records; record < count; record++) {
+                int offset = (int)(ArchiveFrames.getRecordOffset(record) - base);
+                long timestamp = map.getLong(offset + Archiver.TIMESTAMP);
+                int flags = getFlags(map.get(offset + Archiver.ST), map.get(offset + Archiver.ER));
+                if (apply(record, timestamp, flags)) {
+                    putEntry(bb, record, flags, timestamp);
+                    lastLogged = record;
+                }
+            }
+            writeEntries(bb);
+        } finally {
+            istream.close();
+        }
+    }
+
+    /* Called by writer after records [first, first + count) of bb are written */
+    public synchronized void onRecords(ByteBuffer bb, long first, int count) throws IOException {
+        if (first > records) {
+            sync();
+            return;
+        }
+
+        ByteBuffer entries = ByteBuffer.allocate(count * ENTRY_SIZE);
+        for (int i = 0; i < count; i++) {
+            int record = (int)(first + i);
+            if (record < records)
+                continue;
+
+            int offset = i * Archiver.RECORD_SIZE;
+            long timestamp = bb.getLong(offset + Archiver.TIMESTAMP);
+            int flags = getFlags(bb.get(offset + Archiver.ST), bb.get(offset + Archiver.ER));
+            if (apply(record, timestamp, flags)) {
+                putEntry(entries, record, flags, timestamp);
+                lastLogged = record;
+            }
+        }
+        writeEntries(entries);
+    }
+
+    /* Logs last record, so that index stays complete without data file */
+    public synchronized void seal() throws IOException {
+        if (records == 0 || lastLogged == records - 1)
+            return;
+
+        ByteBuffer bb = ByteBuffer.allocate(ENTRY_SIZE);
+        putEntry(bb, records - 1, lastFlags, lastTimestamp);
+        writeEntries(bb);
+        lastLogged = records - 1;
+    }
+
+    public synchronized int getRecordCount() {
+        return records;
+    }
+
+    public synchronized long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public synchronized long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /* Number of runs of bit, size of its bitmap */
+    public synchronized int getRunCount(int bit) {
+        return runs[bit].count;
+    }
+
+    /*
+     * Adds intervals where expression holds to out. Interval ends at the
+     * first record where it no longer holds, or at the last record.
+     * Returns true if expression still holds at the last record.
+     */
+    public synchronized boolean findEvents(ArchiveEventExpression expression,
+                                           ArrayList<ArchiveEvent> out) {
+        if (records == 0)
+            return false;
+
+        int mask = expression.getMask();
+
+        /* Each bit walks boundaries of its runs: 2k is start of run k, 2k + 1 is its end */
+        int[] next = new int[FLAG_BITS];
+        int flags = 0;
+        int record = 0;
+        long timestamp = firstTimestamp;
+        boolean inEvent = false;
+        long eventStart = 0;
+
+        while (true) {
+            int nextRecord = Integer.MAX_VALUE;
+            long nextTimestamp = 0;
+
+            for (int bit = 0; bit < FLAG_BITS; bit++) {
+                if ((mask & (1 << bit)) == 0)
+                    continue;
+                Runs r = runs[bit];
+
+                while (true) {
+                    int k = next[bit];
+                    int run = k >> 1;
+                    if (run >= r.count || ((k & 1) == 1 && run == r.count - 1 && r.open))
+                        break;
+
+                    int boundary = ((k & 1) == 0) ? r.starts[run] : r.ends[run];
+                    if (boundary > record) {
+                        if (boundary < nextRecord) {
+                            nextRecord = boundary;
+                            nextTimestamp = ((k & 1) == 0) ? r.startTimes[run] : r.endTimes[run];
+                        }
+                        break;
+                    }
+
+                    if ((k & 1) == 0)
+                        flags |= 1 << bit;
+                    else
+                        flags &= ~(1 << bit);
+                    next[bit]++;
+                }
+            }
+
+            boolean matches = expression.matches(flags);
+            if (matches && !inEvent) {
+                eventStart = timestamp;
+                inEvent = true;
+            } else if (!matches && inEvent) {
+                out.add(new ArchiveEvent(eventStart, timestamp));
+                inEvent = false;
+            }
+
+            if (nextRecord == Integer.MAX_VALUE)
+                break;
+            record = nextRecord;
+            timestamp = nextTimestamp;
+        }
+
+        if (inEvent)
+            out.add(new ArchiveEvent(eventStart, lastTimestamp));
+        return inEvent;
+    }
+
+    /*
+     * Intervals of [mintime, maxtime) where expression held, read from flag
+     * indexes only. Events running across segment boundaries are joined.
+     */
+    public static ArchiveEvent[] findEvents(List<ArchiveSegments.Segment> segments,
+                                            ArchiveEventExpression expression,
+                                            long mintime, long maxtime)
+            throws IOException {
+        ArrayList<ArchiveEvent> events = new ArrayList<>();
+        boolean previousOpen = false;
+
+        for (ArchiveSegments.Segment segment : segments) {
+            if (!segment.file.exists() && !ArchiveColumns.getV2File(segment.file).exists())
+                continue;
+
+            ArchiveFlagIndex index = open(segment.file);
+            int first = events.size();
+            boolean open = index.findEvents(expression, events);
+            if (index.getRecordCount() == 0)
+                continue;
+
+            /* Event still held at the end of previous segment lasts until this one */
+            if (previousOpen) {
+                ArchiveEvent previous = events.get(first - 1);
+                if (events.size() > first && events.get(first).start == index.getFirstTimestamp()) {
+                    previous.end = events.get(first).end;
+                    events.remove(first);
+                } else {
+                    previous.end = index.getFirstTimestamp();
+                }
+            }
+
+            /* Event may also end at the last record, when expression stops holding there */
+            previousOpen = open;
+        }
+
+        ArrayList<ArchiveEvent> result = new ArrayList<>();
+        for (ArchiveEvent event : events) {
+            if (event.end < mintime || event.start >= maxtime)
+                continue;
+            result.add(new ArchiveEvent(Math.max(event.start, mintime),
+                    Math.min(event.end, maxtime)));
+        }
+        return result.toArray(new ArchiveEvent[0]);
+    }
+}
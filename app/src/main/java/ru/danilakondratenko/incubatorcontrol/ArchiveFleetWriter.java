@@ -0,0 +1,542 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * Single write path of a process recording many incubators. Producers put
+ * records tagged with incubator address into one bounded ring, a writer
+ * thread gathers them per incubator and commits each batch with one write.
+ * Segment files are kept open in an LRU of bounded size, so that hundreds
+ * of incubators need only a few file handles.
+ *
+ * Records are written as they come, there is no write filter and no tail.
+ * Incubator must not be recorded by an Archiver of the same process.
+ */
+public class ArchiveFleetWriter {
+    /* Writer defaults */
+    public static final int DEFAULT_CAPACITY = 16384;
+    public static final int DEFAULT_MAX_OPEN = 64;
+    public static final int DEFAULT_COMMIT_RECORDS = 64;
+    /*
+     * Incubators are polled every 2 seconds, so a commit holds about 30 records.
+     * With a few seconds each commit of hundreds of incubators would hold 2-3
+     * records and most of them would evict an open file.
+     */
+    public static final long DEFAULT_COMMIT_INTERVAL = 60000L;
+    public static final int DRAIN_BATCH = 1024;
+
+    /* Commit intervals are checked at least this often, or every interval if shorter */
+    private static final long TICK = 1000;
+
+    /* Records of one incubator not committed yet */
+    private static class Destination {
+        final String address;
+        ArchiveSegments segments;
+        ArchiveRollup[] rollups;
+        ArchiveCycles cycles;
+        ArchiveSegments.Segment segment;
+
+        final ByteBuffer pending;
+        int count = 0;
+        long firstTime;
+
+        Destination(String address, int commitRecords) {
+            this.address = address;
+            this.pending = ByteBuffer.allocate(commitRecords * Archiver.RECORD_SIZE);
+        }
+    }
+
+    private final File filesDir;
+    private final int capacity;
+    private final int maxOpen;
+    private final int commitRecords;
+    private final long commitInterval;
+    private final long tick;
+
+    /* Incubators by normalized address, numbers tag queued records */
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final ArrayList<String> addresses = new ArrayList<>();
+
+    /* Slots [head, head + count) modulo capacity are queued */
+    private final ByteBuffer slots;
+    private final int[] slotIds;
+    private final long[] enqueueTimes;
+    private final long[] cycleStarts;
+    private int head = 0, count = 0;
+    private boolean closed = false;
+    private long flushRequested = 0, flushDone = 0;
+
+    /* Writer thread state */
+    private final ByteBuffer batch = ByteBuffer.allocate(DRAIN_BATCH * Archiver.RECORD_SIZE);
+    private final int[] batchIds = new int[DRAIN_BATCH];
+    private final long[] batchTimes = new long[DRAIN_BATCH];
+    private final long[] batchCycleStarts = new long[DRAIN_BATCH];
+    private final ArrayList<Destination> destinations = new ArrayList<>();
+    private long lastScan = 0;
+
+    /* Open segment writers by path, in access order */
+    private final LinkedHashMap<String, ArchiveWriter> writers =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Thread thread;
+
+    /* Writer statistics */
+    private int maxDepth = 0;
+    private long recordsQueued = 0;
+    private long recordsWritten = 0;
+    private long recordsDropped = 0;
+    private long writeErrors = 0;
+    private long commits = 0;
+    private long opens = 0;
+    private long evictions = 0;
+    private int openFiles = 0;
+    private long maxLatency = 0;
+
+    ArchiveFleetWriter(File filesDir) {
+        this(filesDir, DEFAULT_CAPACITY, DEFAULT_MAX_OPEN,
+                DEFAULT_COMMIT_RECORDS, DEFAULT_COMMIT_INTERVAL);
+    }
+
+    ArchiveFleetWriter(File filesDir, int capacity, int maxOpen,
+                       int commitRecords, long commitInterval) {
+        this.filesDir = filesDir;
+        this.capacity = Math.max(capacity, 1);
+        this.maxOpen = Math.max(maxOpen, 1);
+        this.commitRecords = Math.max(commitRecords, 1);
+        this.commitInterval = commitInterval;
+        this.tick = Math.max(Math.min(TICK, commitInterval), 1);
+
+        this.slots = ByteBuffer.allocate(this.capacity * Archiver.RECORD_SIZE);
+        this.slotIds = new int[this.capacity];
+        this.enqueueTimes = new long[this.capacity];
+        this.cycleStarts = new long[this.capacity];
+
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "Archive Fleet Writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private int getId(String incubator) {
+        String key = ArchiveRegistry.normalize(incubator);
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = addresses.size();
+            addresses.add(key);
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    /* Takes a slot for record of incubator, returns its offset or -1 if record is dropped */
+    private int reserve(String incubator, long cycleStart) {
+        if (closed || count == capacity) {
+            recordsDropped++;
+            return -1;
+        }
+
+        int slot = (head + count) % capacity;
+        slotIds[slot] = getId(incubator);
+        enqueueTimes[slot] = System.nanoTime();
+        cycleStarts[slot] = cycleStart;
+        count++;
+        recordsQueued++;
+        maxDepth = Math.max(maxDepth, count);
+
+        notifyAll();
+        return slot * Archiver.RECORD_SIZE;
+    }
+
+    /* Encodes record of incubator into a free slot, returns false if it is dropped */
+    public synchronized boolean offer(String incubator, IncubatorState state,
+                                      IncubatorConfig cfg) {
+        int offset = reserve(incubator, ArchiveCycles.getCycleStart(state));
+        if (offset < 0)
+            return false;
+        Archiver.encodeRecord(state, cfg, slots, offset);
+        return true;
+    }
+
+    /* Copies encoded record at offset of bb, returns false if it is dropped */
+    public synchronized boolean offer(String incubator, ByteBuffer bb, int offset) {
+        int slot = reserve(incubator, ArchiveCycles.UNKNOWN);
+        if (slot < 0)
+            return false;
+        slots.putLong(slot, bb.getLong(offset));
+        slots.putLong(slot + 8, bb.getLong(offset + 8));
+        return true;
+    }
+
+    /* Takes up to DRAIN_BATCH records into batch, returns -1 when closed and empty */
+    private synchronized int take() throws InterruptedException {
+        if (count == 0 && !closed && flushRequested == flushDone)
+            wait(tick);
+        if (count == 0 && closed)
+            return -1;
+
+        int n = Math.min(count, DRAIN_BATCH);
+        for (int i = 0; i < n; i++) {
+            int slot = (head + i) % capacity;
+            int offset = slot * Archiver.RECORD_SIZE;
+            batch.putLong(i * Archiver.RECORD_SIZE, slots.getLong(offset));
+            batch.putLong(i * Archiver.RECORD_SIZE + 8, slots.getLong(offset + 8));
+            batchIds[i] = slotIds[slot];
+            batchTimes[i] = enqueueTimes[slot];
+            batchCycleStarts[i] = cycleStarts[slot];
+        }
+        head = (head + n) % capacity;
+        count -= n;
+        return n;
+    }
+
+    private synchronized String getAddress(int id) {
+        return addresses.get(id);
+    }
+
+    private synchronized void account(int written, int failed, int dropped) {
+        recordsWritten += written;
+        writeErrors += failed;
+        recordsDropped += dropped;
+        if (written > 0)
+            commits++;
+    }
+
+    private synchronized void updateLatency(long latency) {
+        maxLatency = Math.max(maxLatency, latency);
+    }
+
+    private synchronized void updateFiles(int opened, int evicted) {
+        opens += opened;
+        evictions += evicted;
+        openFiles = writers.size();
+    }
+
+    /* Opens archive of incubator on first record, as Archiver does for its namespace */
+    private Destination getDestination(int id) throws IOException {
+        while (destinations.size() <= id)
+            destinations.add(null);
+
+        Destination destination = destinations.get(id);
+        if (destination == null) {
+            destination = new Destination(getAddress(id), commitRecords);
+            ArchiveRegistry.Incubator incubator =
+                    ArchiveRegistry.open(filesDir).register(destination.address);
+            File dir = new File(filesDir, incubator.directory);
+            File legacy = incubator.isLegacy()
+                    ? new File(filesDir, Archiver.ARCHIVE_FILE_NAME) : null;
+
+            destination.segments = ArchiveSegments.open(dir, legacy);
+            destination.cycles = ArchiveCycles.open(dir);
+            destination.rollups = openRollups(destination.segments);
+            destinations.set(id, destination);
+        }
+        return destination;
+    }
+
+    /* Null if tiers are not built yet, they are skipped until writer is reopened */
+    private static ArchiveRollup[] openRollups(ArchiveSegments segments) throws IOException {
+        ArchiveRollup[] result = new ArchiveRollup[ArchiveRollup.TIER_WIDTHS.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ArchiveRollup.open(segments, ArchiveRollup.TIER_WIDTHS[i]);
+            if (result[i] == null)
+                return null;
+        }
+        return result;
+    }
+
+    private ArchiveWriter getWriter(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        ArchiveWriter writer = writers.get(key);
+        if (writer != null)
+            return writer;
+
+        int evicted = 0;
+        Iterator<ArchiveWriter> it = writers.values().iterator();
+        while (writers.size() >= maxOpen && it.hasNext()) {
+            ArchiveWriter eldest = it.next();
+            it.remove();
+            evicted++;
+            eldest.close();
+        }
+
+        /* Commits are driven by destination batches only */
+        writer = new ArchiveWriter(file, commitRecords, Long.MAX_VALUE);
+        writers.put(key, writer);
+        updateFiles(1, evicted);
+        return writer;
+    }
+
+    private void add(Destination destination, ByteBuffer record, int offset, long cycleStart)
+            throws IOException {
+        destination.cycles.onRecord(cycleStart);
+        if (destination.rollups != null) {
+            for (ArchiveRollup rollup : destination.rollups)
+                rollup.add(record, offset);
+        }
+
+        if (destination.count == 0)
+            destination.firstTime = System.currentTimeMillis();
+        destination.pending.putLong(destination.count * Archiver.RECORD_SIZE,
+                record.getLong(offset));
+        destination.pending.putLong(destination.count * Archiver.RECORD_SIZE + 8,
+                record.getLong(offset + 8));
+        if (++destination.count == commitRecords)
+            commit(destination);
+    }
+
+    /*
+     * Writes pending records of destination, segment by segment. Records going
+     * back in time are dropped as in FlatArchiveStore: earlier segments are
+     * never reopened, converted ones are sealed.
+     */
+    private void commit(Destination destination) {
+        int n = destination.count;
+        int written = 0, appended = 0, dropped = 0;
+        destination.count = 0;
+        if (n == 0)
+            return;
+
+        ArchiveWriter writer = null;
+        try {
+            for (int i = 0; i < n; i++) {
+                int offset = i * Archiver.RECORD_SIZE;
+                long timestamp = destination.pending.getLong(offset + Archiver.TIMESTAMP);
+                ArchiveSegments.Segment segment = destination.segment;
+                if (segment == null || !segment.contains(timestamp)) {
+                    if (segment != null && timestamp < segment.start) {
+                        dropped++;
+                        continue;
+                    }
+                    segment = destination.segments.getSegmentFor(timestamp);
+                    if (ArchiveColumns.getV2File(segment.file).exists()) {
+                        dropped++;
+                        continue;
+                    }
+
+                    if (writer != null) {
+                        writer.flush();
+                        written += appended;
+                        appended = 0;
+                    }
+                    destination.segment = segment;
+                    writer = null;
+                }
+                if (writer == null)
+                    writer = getWriter(segment.file);
+                if (timestamp < writer.getLastTimestamp()) {
+                    dropped++;
+                    continue;
+                }
+                writer.append(destination.pending, offset);
+                appended++;
+            }
+            /* Records count as written only once they are flushed */
+            if (writer != null)
+                writer.flush();
+            written += appended;
+        } catch (IOException e) {
+            e.printStackTrace();
+            /* Failed file is reopened and recovered by the next commit */
+            if (destination.segment != null)
+                closeWriter(destination.segment.file);
+            destination.segment = null;
+        }
+
+        account(written, n - written - dropped, dropped);
+    }
+
+    /* Commits destinations whose oldest pending record waited for commit interval */
+    private void commitDue(long now) {
+        if (now - lastScan < tick && now >= lastScan)
+            return;
+        lastScan = now;
+
+        for (Destination destination : destinations) {
+            if (destination != null && destination.count > 0
+                    && now - destination.firstTime >= commitInterval)
+                commit(destination);
+        }
+    }
+
+    private void commitAll() {
+        for (Destination destination : destinations) {
+            if (destination == null)
+                continue;
+            commit(destination);
+            if (destination.rollups == null)
+                continue;
+            try {
+                for (ArchiveRollup rollup : destination.rollups)
+                    rollup.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeWriter(File file) {
+        ArchiveWriter writer = writers.remove(file.getAbsolutePath());
+        try {
+            if (writer != null)
+                writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        updateFiles(0, 0);
+    }
+
+    private void closeWriters() {
+        for (ArchiveWriter writer : writers.values()) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        writers.clear();
+        updateFiles(0, 0);
+    }
+
+    private void drainLoop() {
+        try {
+            while (true) {
+                long flush;
+                synchronized (this) {
+                    flush = flushRequested;
+                }
+
+                int n = take();
+                if (n < 0)
+                    break;
+
+                for (int i = 0; i < n; i++) {
+                    try {
+                        add(getDestination(batchIds[i]), batch,
+                                i * Archiver.RECORD_SIZE, batchCycleStarts[i]);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        account(0, 1, 0);
+                    }
+                    updateLatency(System.nanoTime() - batchTimes[i]);
+                }
+
+                commitDue(System.currentTimeMillis());
+
+                /* Records offered before flush() were taken before the ring got empty */
+                synchronized (this) {
+                    if (count > 0 || flush == flushDone)
+                        continue;
+                }
+                commitAll();
+                synchronized (this) {
+                    flushDone = flush;
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        commitAll();
+        closeWriters();
+
+        synchronized (this) {
+            flushDone = flushRequested;
+            notifyAll();
+        }
+    }
+
+    /* Makes every record offered before the call visible to readers */
+    public void flush() {
+        synchronized (this) {
+            long request = ++flushRequested;
+            notifyAll();
+            try {
+                while (flushDone < request && thread.isAlive())
+                    wait();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /* Writes out queued records, closes files and stops writer thread */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getIncubatorCount() {
+        return addresses.size();
+    }
+
+    public synchronized int getDepth() {
+        return count;
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getRecordsQueued() {
+        return recordsQueued;
+    }
+
+    public synchronized long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    /* Dropped because ring was full or record went back in time */
+    public synchronized long getRecordsDropped() {
+        return recordsDropped;
+    }
+
+    public synchronized long getWriteErrors() {
+        return writeErrors;
+    }
+
+    /* Batches written, one per destination and commit */
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    /* Segment files opened and closed to stay within open file limit */
+    public synchronized long getOpens() {
+        return opens;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int getOpenFiles() {
+        return openFiles;
+    }
+
+    /* Longest time from offer() to batch of incubator in nanoseconds */
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+}
@@ -0,0 +1,128 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/*
+ * Segment data layout: frames of FRAME_SIZE bytes, each one is a header
+ * followed by up to FRAME_RECORDS records. Header is rewritten after records
+ * of every commit, so only the last frame can be incomplete.
+ */
+public class ArchiveFrames {
+    /* Frame constants */
+    public static final int MAGIC = 0x49414631; /* "IAF1" */
+    public static final int FRAME_SIZE = 4096;
+    public static final int HEADER_SIZE = 16;
+    public static final int FRAME_RECORDS = (FRAME_SIZE - HEADER_SIZE) / Archiver.RECORD_SIZE;
+
+    /* Frame header indexes */
+    public static final int FH_MAGIC = 0;
+    public static final int FH_FRAME = 4;
+    public static final int FH_COUNT = 8;
+    public static final int FH_CRC   = 12;
+
+    public static long getFrameOffset(long frame) {
+        return frame * FRAME_SIZE;
+    }
+
+    public static long getRecordOffset(long record) {
+        return getFrameOffset(record / FRAME_RECORDS) + HEADER_SIZE
+                + (record % FRAME_RECORDS) * Archiver.RECORD_SIZE;
+    }
+
+    /* Number of whole records in first length bytes of segment */
+    public static long getRecordCount(long length) {
+        long frames = length / FRAME_SIZE;
+        long rest = length % FRAME_SIZE;
+        long records = frames * FRAME_RECORDS;
+        if (rest > HEADER_SIZE)
+            records += (rest - HEADER_SIZE) / Archiver.RECORD_SIZE;
+        return records;
+    }
+
+    /*
+     * Number of records covered by header of the last frame, records
+     * written after it are not counted. Nothing is checked or truncated.
+     */
+    public static long getCommittedRecords(RandomAccessFile raf) throws IOException {
+        long length = raf.length();
+        if (length == 0)
+            return 0;
+
+        long frame = (length - 1) / FRAME_SIZE;
+        if (length - getFrameOffset(frame) < HEADER_SIZE)
+            return frame * FRAME_RECORDS;
+
+        raf.seek(getFrameOffset(frame));
+        int magic = raf.readInt();
+        int number = raf.readInt();
+        int count = raf.readInt();
+        if (magic != MAGIC || number != (int) frame || count < 0 || count > FRAME_RECORDS)
+            return frame * FRAME_RECORDS;
+
+        return Math.min(frame * FRAME_RECORDS + count, getRecordCount(length));
+    }
+
+    /* Writes header of frame holding count records with given checksum */
+    public static void putHeader(ByteBuffer bb, long frame, int count, int crc) {
+        bb.putInt(MAGIC);
+        bb.putInt((int) frame);
+        bb.putInt(count);
+        bb.putInt(crc);
+    }
+
+    /*
+     * Checks only the last frame, records not covered by its header or failing
+     * its checksum are not valid. A frame with broken header is invalid as a
+     * whole. Returns length of valid data, crc is left holding checksum of valid
+     * records in the last frame. Nothing is written.
+     */
+    public static long validate(FileChannel channel, CRC32 crc) throws IOException {
+        crc.reset();
+
+        long length = channel.size();
+        if (length == 0)
+            return 0;
+
+        long frame = (length - 1) / FRAME_SIZE;
+        long start = getFrameOffset(frame);
+
+        ByteBuffer bb = ByteBuffer.allocate(FRAME_SIZE);
+        bb.limit((int)(length - start));
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, start + bb.position()) == -1)
+                break;
+        }
+
+        int count = 0;
+        int available = bb.position();
+        if (available >= HEADER_SIZE
+                && bb.getInt(FH_MAGIC) == MAGIC
+                && bb.getInt(FH_FRAME) == (int) frame) {
+            count = bb.getInt(FH_COUNT);
+            if (count < 1 || count > FRAME_RECORDS
+                    || HEADER_SIZE + count * Archiver.RECORD_SIZE > available) {
+                count = 0;
+            } else {
+                crc.update(bb.array(), HEADER_SIZE, count * Archiver.RECORD_SIZE);
+                if ((int) crc.getValue() != bb.getInt(FH_CRC)) {
+                    crc.reset();
+                    count = 0;
+                }
+            }
+        }
+
+        return (count > 0) ? start + HEADER_SIZE + count * Archiver.RECORD_SIZE : start;
+    }
+
+    /* Truncates data after what validate() accepts, returns new data length */
+    public static long recover(FileChannel channel, CRC32 crc) throws IOException {
+        long valid = validate(channel, crc);
+        if (valid < channel.size())
+            channel.truncate(valid);
+        return valid;
+    }
+}
@@ -0,0 +1,233 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+public class ArchiveIndex {
+    /* Index constants */
+    public static final String INDEX_EXTENSION = ".idx";
+    public static final int INDEX_STEP = 256;
+    public static final int ENTRY_SIZE = 16;
+
+    /* Index entry fields */
+    public static final int ENTRY_TIMESTAMP = 0;
+    public static final int ENTRY_OFFSET = 8;
+
+    private static final HashMap<String, ArchiveIndex> opened = new HashMap<>();
+
+    private final File dataFile, indexFile;
+
+    /* Entry i describes record number i * INDEX_STEP */
+    private long[] timestamps = new long[16];
+    private long[] offsets = new long[16];
+    private int count = 0;
+
+    /* One instance per data file, shared by writer and readers */
+    public static synchronized ArchiveIndex open(File dataFile) throws IOException {
+        String key = dataFile.getAbsolutePath();
+        ArchiveIndex result = opened.get(key);
+        if (result == null) {
+            result = new ArchiveIndex(dataFile);
+            opened.put(key, result);
+        }
+        result.sync();
+        return result;
+    }
+
+    public static synchronized void forget(File dataFile) {
+        ArchiveIndex index = opened.remove(dataFile.getAbsolutePath());
+        File indexFile = (index != null) ? index.indexFile : getIndexFile(dataFile);
+        indexFile.delete();
+    }
+
+    public static File getIndexFile(File dataFile) {
+        String name = dataFile.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0)
+            name = name.substring(0, dot);
+        return new File(dataFile.getParentFile(), name + INDEX_EXTENSION);
+    }
+
+    private ArchiveIndex(File dataFile) throws IOException {
+        this.dataFile = dataFile;
+        this.indexFile = getIndexFile(dataFile);
+
+        if (!load())
+            rebuild();
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    private void put(long timestamp, long offset) {
+        if (count == timestamps.length) {
+            long[] newTimestamps = new long[count * 2];
+            long[] newOffsets = new long[count * 2];
+            System.arraycopy(timestamps, 0, newTimestamps, 0, count);
+            System.arraycopy(offsets, 0, newOffsets, 0, count);
+            timestamps = newTimestamps;
+            offsets = newOffsets;
+        }
+        timestamps[count] = timestamp;
+        offsets[count] = offset;
+        count++;
+    }
+
+    private static long recordCount(File dataFile) throws IOException {
+        return ArchiveCommits.getCommittedRecords(dataFile);
+    }
+
+    private static long recordOffset(long record) {
+        return ArchiveFrames.getRecordOffset(record);
+    }
+
+    /* Returns false when sidecar is unusable and must be rebuilt */
+    private boolean load() throws IOException {
+        count = 0;
+        if (!indexFile.exists())
+            return false;
+        if (indexFile.length() % ENTRY_SIZE != 0)
+            return false;
+
+        long records = recordCount(dataFile);
+        long expected = (records + INDEX_STEP - 1) / INDEX_STEP;
+        if (indexFile.length() / ENTRY_SIZE > expected)
+            return false;
+
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            ByteBuffer bb = ByteBuffer.allocate((int) raf.length());
+            FileChannel channel = raf.getChannel();
+            while (bb.hasRemaining()) {
+                if (channel.read(bb) == -1)
+                    break;
+            }
+            bb.flip();
+
+            while (bb.remaining() >= ENTRY_SIZE) {
+                int entry = bb.position();
+                put(bb.getLong(entry + ENTRY_TIMESTAMP), bb.getLong(entry + ENTRY_OFFSET));
+                bb.position(entry + ENTRY_SIZE);
+            }
+        } finally {
+            raf.close();
+        }
+
+        if (count == 0)
+            return true;
+
+        int last = count - 1;
+        return offsets[last] == recordOffset((long) last * INDEX_STEP)
+                && timestamps[last] == readTimestamp(offsets[last]);
+    }
+
+    private long readTimestamp(long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+        try {
+            raf.seek(offset + Archiver.TIMESTAMP);
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void rebuild() throws IOException {
+        count = 0;
+        if (indexFile.exists() && !indexFile.delete())
+            throw new IOException("Cannot remove stale index " + indexFile);
+        sync();
+    }
+
+    /* Adds entries for records appended to data file since last call */
+    public synchronized void sync() throws IOException {
+        long records = recordCount(dataFile);
+        long expected = (records + INDEX_STEP - 1) / INDEX_STEP;
+        if (count > expected) {
+            rebuild();
+            return;
+        }
+        if (count == expected)
+            return;
+
+        ByteBuffer bb = ByteBuffer.allocate((int)(expected - count) * ENTRY_SIZE);
+        RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+        try {
+            for (long i = count; i < expected; i++) {
+                long offset = recordOffset(i * INDEX_STEP);
+                raf.seek(offset + Archiver.TIMESTAMP);
+                long timestamp = raf.readLong();
+                put(timestamp, offset);
+                bb.putLong(timestamp);
+                bb.putLong(offset);
+            }
+        } finally {
+            raf.close();
+        }
+
+        FileOutputStream fos = new FileOutputStream(indexFile, true);
+        try {
+            fos.write(bb.array(), 0, bb.position());
+        } finally {
+            fos.close();
+        }
+    }
+
+    /* Called by writer after records are durable, ignores entries already known */
+    public synchronized void onRecord(long record, long timestamp, long offset)
+            throws IOException {
+        if (record % INDEX_STEP != 0 || record / INDEX_STEP < count)
+            return;
+        if (record / INDEX_STEP > count) {
+            sync();
+            return;
+        }
+
+        put(timestamp, offset);
+
+        ByteBuffer bb = ByteBuffer.allocate(ENTRY_SIZE);
+        bb.putLong(timestamp);
+        bb.putLong(offset);
+        FileOutputStream fos = new FileOutputStream(indexFile, true);
+        try {
+            fos.write(bb.array());
+        } finally {
+            fos.close();
+        }
+    }
+
+    /* Byte offset from which no record with timestamp >= time is skipped */
+    public synchronized long getStartOffset(long time) {
+        int low = 0, high = count;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return (low == 0) ? 0 : offsets[low - 1];
+    }
+
+    /* Byte offset after which all records have timestamp >= time */
+    public synchronized long getEndOffset(long time, long dataLength) {
+        int low = 0, high = count;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return (low == count) ? dataLength : Math.min(offsets[low], dataLength);
+    }
+}
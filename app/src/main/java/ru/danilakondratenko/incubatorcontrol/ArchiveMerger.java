@@ -0,0 +1,188 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * Streaming k-way merge of archive sources by timestamp, used to fill gaps of
+ * local archive with records of cloud archive.
+ */
+public class ArchiveMerger {
+    /* Most cloud requests per query, closest gaps are fetched together above it */
+    public static final int MAX_GAP_REQUESTS = 8;
+
+    /* Forward-only sequence of records sorted by timestamp */
+    public interface Source {
+        /* Moves to next record, returns false at end */
+        boolean next() throws IOException;
+
+        long getTimestamp();
+
+        /* Appends current record to out */
+        void addTo(ArchiveSeries out);
+    }
+
+    public static class CursorSource implements Source {
+        private final ArchiveCursor cursor;
+
+        CursorSource(ArchiveCursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            return cursor.next();
+        }
+
+        @Override
+        public long getTimestamp() {
+            return cursor.getTimestamp();
+        }
+
+        @Override
+        public void addTo(ArchiveSeries out) {
+            out.add(cursor.getBatch(), cursor.getPosition());
+        }
+    }
+
+    /* Records of series inside given intervals only */
+    public static class SeriesSource implements Source {
+        private final ArchiveSeries series;
+        private final List<long[]> intervals;
+        private int position = -1;
+        private int interval = 0;
+
+        SeriesSource(ArchiveSeries series, List<long[]> intervals) {
+            this.series = series;
+            this.intervals = intervals;
+        }
+
+        @Override
+        public boolean next() {
+            while (++position < series.size()) {
+                long timestamp = series.getTimestamp(position);
+                while (interval < intervals.size() && intervals.get(interval)[1] <= timestamp)
+                    interval++;
+                if (interval == intervals.size())
+                    break;
+                if (timestamp >= intervals.get(interval)[0])
+                    return true;
+            }
+            position = series.size();
+            return false;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return series.getTimestamp(position);
+        }
+
+        @Override
+        public void addTo(ArchiveSeries out) {
+            out.add(series, position);
+        }
+    }
+
+    /* Longest of maxGap and GAP_WIDTHS widths of segments overlapping [start, end) */
+    private static long getMaxGap(List<ArchiveSegments.Segment> segments,
+                                  long start, long end, long maxGap) {
+        long result = maxGap;
+        for (ArchiveSegments.Segment segment : segments) {
+            if (segment.start < end && segment.end > start)
+                result = Math.max(result, ArchiveStatistics.GAP_WIDTHS * segment.width);
+        }
+        return result;
+    }
+
+    /*
+     * Intervals [start, end) of [mintime, maxtime) without records, longer than
+     * maxGap or than a few widths of downsampled segments read by source.
+     */
+    public static List<long[]> findGaps(Source source, List<ArchiveSegments.Segment> segments,
+                                        long mintime, long maxtime, long maxGap)
+            throws IOException {
+        ArrayList<long[]> gaps = new ArrayList<>();
+        long start = mintime;
+
+        /* Gap starts after last record, so that it never overlaps local data */
+        while (source.next()) {
+            long timestamp = source.getTimestamp();
+            if (timestamp - start > maxGap
+                    && timestamp - start > getMaxGap(segments, start, timestamp, maxGap))
+                gaps.add(new long[] { start, timestamp });
+            start = timestamp + 1;
+        }
+        if (maxtime - start > getMaxGap(segments, start, maxtime, maxGap))
+            gaps.add(new long[] { start, maxtime });
+
+        return gaps;
+    }
+
+    /*
+     * Intervals [start, end) of [mintime, maxtime) without buckets of width,
+     * longer than maxGap. Gaps are made of whole buckets, clipped to mintime.
+     */
+    public static List<long[]> findBucketGaps(ArchiveBucket[] buckets, long width,
+                                              long mintime, long maxtime, long maxGap) {
+        ArrayList<long[]> gaps = new ArrayList<>();
+        long start = mintime - ((mintime % width) + width) % width;
+
+        for (ArchiveBucket bucket : buckets) {
+            if (bucket.timestamp - Math.max(start, mintime) > maxGap)
+                gaps.add(new long[] { Math.max(start, mintime), bucket.timestamp });
+            start = bucket.timestamp + width;
+        }
+        if (maxtime - Math.max(start, mintime) > maxGap)
+            gaps.add(new long[] { Math.max(start, mintime), maxtime });
+
+        return gaps;
+    }
+
+    /* Joins closest gaps until there are at most count of them, result may include local data */
+    public static List<long[]> coalesce(List<long[]> gaps, int count) {
+        ArrayList<long[]> result = new ArrayList<>();
+        for (long[] gap : gaps)
+            result.add(new long[] { gap[0], gap[1] });
+
+        while (result.size() > Math.max(count, 1)) {
+            int closest = 0;
+            for (int i = 1; i < result.size() - 1; i++) {
+                if (result.get(i + 1)[0] - result.get(i)[1]
+                        < result.get(closest + 1)[0] - result.get(closest)[1])
+                    closest = i;
+            }
+            result.get(closest)[1] = result.get(closest + 1)[1];
+            result.remove(closest + 1);
+        }
+        return result;
+    }
+
+    /* Appends records of all sources to out in timestamp order, earlier source wins ties */
+    public static void merge(List<Source> sources, ArchiveSeries out) throws IOException {
+        final List<Source> order = sources;
+        PriorityQueue<Source> heads = new PriorityQueue<>(Math.max(sources.size(), 1),
+                new Comparator<Source>() {
+                    @Override
+                    public int compare(Source a, Source b) {
+                        if (a.getTimestamp() != b.getTimestamp())
+                            return (a.getTimestamp() < b.getTimestamp()) ? -1 : 1;
+                        return order.indexOf(a) - order.indexOf(b);
+                    }
+                });
+
+        for (Source source : sources) {
+            if (source.next())
+                heads.add(source);
+        }
+
+        while (!heads.isEmpty()) {
+            Source source = heads.poll();
+            source.addTo(out);
+            if (source.next())
+                heads.add(source);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Bounded ring of preallocated record slots drained by a single writer thread,
+ * so that callers never wait for disk.
+ */
+public class ArchiveQueue {
+    /* Queue defaults */
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DRAIN_BATCH = 64;
+    public static final long DEFAULT_FLUSH_INTERVAL = ArchiveWriter.DEFAULT_COMMIT_INTERVAL;
+
+    /* Policies when all slots are taken */
+    public static final int FULL_DROP_NEWEST = 0; /* Incoming record is dropped */
+    public static final int FULL_DROP_OLDEST = 1; /* Oldest queued record is overwritten */
+
+    public interface Sink {
+        /* Called on writer thread for each record in queue order */
+        void write(ByteBuffer record, int offset, long cycleStart) throws IOException;
+
+        /* Called on writer thread once no record came for flush interval after a write */
+        void flush() throws IOException;
+    }
+
+    private final Sink sink;
+    private final int capacity;
+    private final int policy;
+
+    /* Slots [head, head + count) modulo capacity are queued */
+    private final ByteBuffer slots;
+    private final long[] enqueueTimes;
+    private final long[] cycleStarts; /* Not part of record, see ArchiveCycles */
+    private int head = 0, count = 0;
+    private boolean inFlight = false;
+    private boolean closed = false;
+
+    /* Records were written since last flush of sink, the last one at lastWrite */
+    private long flushInterval;
+    private boolean dirty = false;
+    private long lastWrite = 0;
+
+    /* Writer thread buffers */
+    private final ByteBuffer batch = ByteBuffer.allocate(DRAIN_BATCH * Archiver.RECORD_SIZE);
+    private final long[] batchTimes = new long[DRAIN_BATCH];
+    private final long[] batchCycleStarts = new long[DRAIN_BATCH];
+
+    private final Thread thread;
+
+    /* Queue statistics */
+    private int maxDepth = 0;
+    private long recordsQueued = 0;
+    private long recordsWritten = 0;
+    private long recordsDropped = 0;
+    private long writeErrors = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+
+    ArchiveQueue(Sink sink) {
+        this(sink, DEFAULT_CAPACITY, FULL_DROP_NEWEST, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    ArchiveQueue(Sink sink, int capacity, int policy, long flushInterval) {
+        if (capacity < 1)
+            capacity = 1;
+
+        this.sink = sink;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.flushInterval = flushInterval;
+        this.slots = ByteBuffer.allocate(capacity * Archiver.RECORD_SIZE);
+        this.enqueueTimes = new long[capacity];
+        this.cycleStarts = new long[capacity];
+
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "Archiver Writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /*
+     * Encodes record into a free slot, returns false if record is dropped
+     * because queue is full or closed.
+     */
+    public synchronized boolean offer(IncubatorState state, IncubatorConfig cfg) {
+        if (closed) {
+            recordsDropped++;
+            return false;
+        }
+
+        if (count == capacity) {
+            recordsDropped++;
+            if (policy == FULL_DROP_NEWEST)
+                return false;
+            head = (head + 1) % capacity;
+            count--;
+        }
+
+        int slot = (head + count) % capacity;
+        Archiver.encodeRecord(state, cfg, slots, slot * Archiver.RECORD_SIZE);
+        enqueueTimes[slot] = System.nanoTime();
+        cycleStarts[slot] = ArchiveCycles.getCycleStart(state);
+        count++;
+        recordsQueued++;
+        maxDepth = Math.max(maxDepth, count);
+
+        notifyAll();
+        return true;
+    }
+
+    public synchronized void setFlushInterval(long interval) {
+        flushInterval = interval;
+        notifyAll();
+    }
+
+    /*
+     * Takes up to DRAIN_BATCH records into batch, returns 0 when closed and
+     * empty, -1 when sink is due to be flushed.
+     */
+    private synchronized int take() throws InterruptedException {
+        inFlight = false;
+        notifyAll();
+
+        /* Records appended last stay in commit buffer until sink is flushed */
+        while (count == 0 && !closed) {
+            if (!dirty) {
+                wait();
+                continue;
+            }
+            long left = lastWrite + flushInterval - System.currentTimeMillis();
+            if (left <= 0) {
+                dirty = false;
+                return -1;
+            }
+            wait(left);
+        }
+        if (count == 0)
+            return 0;
+
+        int n = Math.min(count, DRAIN_BATCH);
+        for (int i = 0; i < n; i++) {
+            int slot = (head + i) % capacity;
+            int offset = slot * Archiver.RECORD_SIZE;
+            batch.putLong(i * Archiver.RECORD_SIZE, slots.getLong(offset));
+            batch.putLong(i * Archiver.RECORD_SIZE + 8, slots.getLong(offset + 8));
+            batchTimes[i] = enqueueTimes[slot];
+            batchCycleStarts[i] = cycleStarts[slot];
+        }
+        head = (head + n) % capacity;
+        count -= n;
+        inFlight = true;
+        return n;
+    }
+
+    private synchronized void account(int written, int failed, long latency, long worst) {
+        if (written > 0) {
+            dirty = true;
+            lastWrite = System.currentTimeMillis();
+        }
+        recordsWritten += written;
+        writeErrors += failed;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, worst);
+    }
+
+    private void drainLoop() {
+        try {
+            int n;
+            while ((n = take()) != 0) {
+                if (n < 0) {
+                    try {
+                        sink.flush();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    continue;
+                }
+
+                int written = 0, failed = 0;
+                long latency = 0, worst = 0;
+
+                for (int i = 0; i < n; i++) {
+                    try {
+                        sink.write(batch, i * Archiver.RECORD_SIZE, batchCycleStarts[i]);
+                        written++;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        failed++;
+                    }
+
+                    long delay = System.nanoTime() - batchTimes[i];
+                    latency += delay;
+                    worst = Math.max(worst, delay);
+                }
+
+                account(written, failed, latency, worst);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        synchronized (this) {
+            inFlight = false;
+            notifyAll();
+        }
+    }
+
+    /* Waits until every record queued before the call is passed to sink */
+    public synchronized void drain() {
+        try {
+            while ((count > 0 || inFlight) && thread.isAlive())
+                wait();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Writes out queued records and stops writer thread */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getDepth() {
+        return count;
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getRecordsQueued() {
+        return recordsQueued;
+    }
+
+    public synchronized long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    public synchronized long getRecordsDropped() {
+        return recordsDropped;
+    }
+
+    public synchronized long getWriteErrors() {
+        return writeErrors;
+    }
+
+    /* Mean time from offer() to sink in nanoseconds, 0 if nothing was written */
+    public synchronized long getMeanLatency() {
+        long done = recordsWritten + writeErrors;
+        return (done == 0) ? 0 : totalLatency / done;
+    }
+
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+}
@@ -0,0 +1,172 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Known incubators and directories of their archives. Incubator is keyed by
+ * its address, the first one registered keeps archive written before namespaces.
+ */
+public class ArchiveRegistry {
+    public static final String REGISTRY_FILE_NAME = "incubators.txt";
+    public static final String NAMESPACE_PREFIX = Archiver.ARCHIVE_DIR_NAME + "-";
+
+    public static class Incubator {
+        public final String address;
+        public final String directory;
+
+        Incubator(String address, String directory) {
+            this.address = address;
+            this.directory = directory;
+        }
+
+        /* Only namespace of legacy archive has single-file archive to migrate */
+        public boolean isLegacy() {
+            return directory.compareTo(Archiver.ARCHIVE_DIR_NAME) == 0;
+        }
+    }
+
+    private static final HashMap<String, ArchiveRegistry> opened = new HashMap<>();
+
+    private final File filesDir;
+
+    /* In order of registration */
+    private final ArrayList<Incubator> incubators = new ArrayList<>();
+
+    /* One instance per directory, so that all archivers in process see the same registry */
+    public static synchronized ArchiveRegistry open(File filesDir) throws IOException {
+        String key = filesDir.getAbsolutePath();
+        ArchiveRegistry result = opened.get(key);
+        if (result == null) {
+            result = new ArchiveRegistry(filesDir);
+            opened.put(key, result);
+        }
+        return result;
+    }
+
+    private ArchiveRegistry(File filesDir) throws IOException {
+        this.filesDir = filesDir;
+        load();
+    }
+
+    /* Same incubator may be entered as "Host:80 " or "host:80" */
+    public static String normalize(String address) {
+        if (address == null)
+            return "";
+        return address.trim().toLowerCase(Locale.US);
+    }
+
+    private static String sanitize(String address) {
+        StringBuilder sb = new StringBuilder(address.length());
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '-')
+                sb.append(c);
+            else
+                sb.append('_');
+        }
+        return sb.toString();
+    }
+
+    private boolean isDirectoryTaken(String directory) {
+        for (Incubator incubator : incubators) {
+            if (incubator.directory.compareTo(directory) == 0)
+                return true;
+        }
+        return false;
+    }
+
+    private String newDirectory(String address) {
+        /* Archive of the only incubator before namespaces belongs to the first one */
+        if (incubators.isEmpty())
+            return Archiver.ARCHIVE_DIR_NAME;
+
+        String base = NAMESPACE_PREFIX + sanitize(address);
+        String directory = base;
+        for (int i = 2; isDirectoryTaken(directory); i++)
+            directory = base + "-" + i;
+        return directory;
+    }
+
+    public synchronized Incubator find(String address) {
+        String key = normalize(address);
+        for (Incubator incubator : incubators) {
+            if (incubator.address.compareTo(key) == 0)
+                return incubator;
+        }
+        return null;
+    }
+
+    /* Returns incubator registered before or adds new one */
+    public synchronized Incubator register(String address) throws IOException {
+        Incubator result = find(address);
+        if (result != null)
+            return result;
+
+        String key = normalize(address);
+        result = new Incubator(key, newDirectory(key));
+        incubators.add(result);
+        try {
+            save();
+        } catch (IOException e) {
+            incubators.remove(result);
+            throw e;
+        }
+        return result;
+    }
+
+    public synchronized List<Incubator> getIncubators() {
+        return new ArrayList<>(incubators);
+    }
+
+    private void load() throws IOException {
+        incubators.clear();
+
+        File registry = new File(filesDir, REGISTRY_FILE_NAME);
+        if (!registry.exists())
+            return;
+
+        BufferedReader reader = new BufferedReader(new FileReader(registry));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                /* Address goes last, it is the only field which is not sanitized */
+                String[] args = line.trim().split(" ", 3);
+                if (args.length == 3 && args[0].compareTo("incubator") == 0)
+                    incubators.add(new Incubator(normalize(args[2]), args[1]));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void save() throws IOException {
+        if (!filesDir.exists() && !filesDir.mkdirs())
+            throw new IOException("Cannot create directory " + filesDir);
+
+        File registry = new File(filesDir, REGISTRY_FILE_NAME);
+        File temp = new File(filesDir, REGISTRY_FILE_NAME + ".tmp");
+
+        FileOutputStream fos = new FileOutputStream(temp);
+        PrintStream ps = new PrintStream(fos);
+        try {
+            for (Incubator incubator : incubators)
+                ps.printf(Locale.US, "incubator %s %s\n", incubator.directory, incubator.address);
+            ps.flush();
+            fos.getFD().sync();
+        } finally {
+            ps.close();
+        }
+
+        if (!temp.renameTo(registry))
+            throw new IOException("Cannot replace incubator registry");
+    }
+}
@@ -9,4 +9,8 @@ import retrofit2.http.Query;
 public interface ArchiveRequest {
     @GET("/archive/query.php")
     Call<ArchiveRecord[]> getArchive(@Query("mintime") long minTime);
+
+    @GET("/archive/query.php")
+    Call<ArchiveRecord[]> getArchive(@Query("mintime") long minTime,
+                                     @Query("maxtime") long maxTime);
 }
@@ -0,0 +1,339 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class ArchiveRollup {
+    /* Rollup constants */
+    public static final String ROLLUP_EXTENSION = ".rol";
+    public static final long[] TIER_WIDTHS = { 60000L, 900000L, 86400000L };
+
+    /* Bucket indexes */
+    public static final int B_TIMESTAMP       =  0;
+    public static final int B_COUNT           =  8;
+    public static final int B_VALID           = 12;
+    public static final int B_HEATER          = 16;
+    public static final int B_WETTER          = 20;
+    public static final int B_MIN_TEMP        = 24;
+    public static final int B_MAX_TEMP        = 28;
+    public static final int B_MEAN_TEMP       = 32;
+    public static final int B_MIN_HUMID       = 36;
+    public static final int B_MAX_HUMID       = 40;
+    public static final int B_MEAN_HUMID      = 44;
+    public static final int B_NEEDED_TEMP     = 48;
+    public static final int B_NEEDED_HUMID    = 52;
+    public static final int B_CHAMBER_LEFT    = 56;
+    public static final int B_CHAMBER_NEUTRAL = 60;
+    public static final int B_CHAMBER_RIGHT   = 64;
+    public static final int B_CHAMBER_ERROR   = 68;
+
+    public static final int BUCKET_SIZE = 72;
+
+    private static final HashMap<String, ArchiveRollup> opened = new HashMap<>();
+
+    private final File file;
+    private final long width;
+
+    /* Last bucket, stored at currentOffset and rewritten until it is complete */
+    private ArchiveBucket current;
+    private long currentOffset;
+
+    private final ByteBuffer io = ByteBuffer.allocate(BUCKET_SIZE);
+
+    private static File getFile(ArchiveSegments segments, long width) {
+        return new File(segments.getDirectory(), width + ROLLUP_EXTENSION);
+    }
+
+    /*
+     * One instance per tier file. Returns null while the file is missing for
+     * archive having records, then it is made by build() and install().
+     */
+    public static synchronized ArchiveRollup open(ArchiveSegments segments, long width)
+            throws IOException {
+        File file = getFile(segments, width);
+        String key = file.getAbsolutePath();
+
+        ArchiveRollup result = opened.get(key);
+        if (result == null) {
+            if (!file.exists() && !segments.getSegments().isEmpty())
+                return null;
+            result = new ArchiveRollup(file, width);
+            opened.put(key, result);
+        }
+        return result;
+    }
+
+    public static boolean exists(ArchiveSegments segments, long width) {
+        return getFile(segments, width).exists();
+    }
+
+    /*
+     * Writes tier into a file next to it from records of segments, buckets
+     * before time are copied from current file. Records are read without
+     * locks, so the whole history may be scanned off the writer thread.
+     * Returns the file to pass to install().
+     */
+    public static File build(ArchiveSegments segments, long width, long time)
+            throws IOException {
+        File file = getFile(segments, width);
+        File temp = new File(file.getPath() + ".tmp");
+        long from = (time == Long.MIN_VALUE) ? time : time - ((time % width) + width) % width;
+
+        /* Last stored bucket may be incomplete, so it is never copied */
+        FileOutputStream ostream = new FileOutputStream(temp);
+        try {
+            if (file.exists()) {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    FileChannel channel = raf.getChannel();
+                    int count = (int)(channel.size() / BUCKET_SIZE);
+                    if (count > 0) {
+                        MappedByteBuffer map = channel.map(
+                                FileChannel.MapMode.READ_ONLY, 0, (long) count * BUCKET_SIZE);
+                        int copied = Math.min(findBucket(map, count, from), count - 1);
+                        from = Math.min(from, map.getLong(copied * BUCKET_SIZE + B_TIMESTAMP));
+                        map.limit(copied * BUCKET_SIZE);
+                        while (map.hasRemaining())
+                            ostream.getChannel().write(map);
+                    }
+                } finally {
+                    raf.close();
+                }
+            }
+        } finally {
+            ostream.close();
+        }
+
+        ArchiveRollup result = new ArchiveRollup(temp, width);
+        result.addRecords(segments, from);
+        return temp;
+    }
+
+    /*
+     * Puts tier made by build() in use and adds records committed since it
+     * was built. Records appended but not committed yet are not seen.
+     */
+    public static synchronized ArchiveRollup install(ArchiveSegments segments, long width,
+                                                     File built) throws IOException {
+        File file = getFile(segments, width);
+        String key = file.getAbsolutePath();
+
+        ArchiveRollup result = opened.get(key);
+        if (result == null) {
+            if (!built.renameTo(file))
+                throw new IOException("Cannot create rollup " + file);
+            result = new ArchiveRollup(file, width);
+            result.catchUp(segments);
+            opened.put(key, result);
+        } else {
+            result.replace(built, segments);
+        }
+        return result;
+    }
+
+    private ArchiveRollup(File file, long width) throws IOException {
+        this.file = file;
+        this.width = width;
+        load();
+    }
+
+    private void load() throws IOException {
+        long length = file.length() - file.length() % BUCKET_SIZE;
+        if (length >= BUCKET_SIZE) {
+            currentOffset = length - BUCKET_SIZE;
+            current = read(currentOffset);
+        } else {
+            currentOffset = 0;
+            current = null;
+        }
+    }
+
+    public long getWidth() {
+        return width;
+    }
+
+    private synchronized void replace(File built, ArchiveSegments segments) throws IOException {
+        if (!built.renameTo(file))
+            throw new IOException("Cannot replace rollup " + file);
+        load();
+        catchUp(segments);
+    }
+
+    /* Recomputes the last bucket and adds buckets after it */
+    private void catchUp(ArchiveSegments segments) throws IOException {
+        long from = (current != null) ? current.timestamp : Long.MIN_VALUE;
+        current = null;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(currentOffset);
+        } finally {
+            raf.close();
+        }
+        addRecords(segments, from);
+    }
+
+    private void addRecords(ArchiveSegments segments, long from) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+
+        ArchiveCursor cursor = new ArchiveCursor(segments.getSegments(from, Long.MAX_VALUE),
+                from, Long.MAX_VALUE, ArchiveCursor.DEFAULT_BATCH_SIZE);
+        try {
+            while (cursor.next()) {
+                cursor.getRecord(bb, 0);
+                add(bb, 0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        flush();
+    }
+
+    public synchronized void add(ByteBuffer record, int offset) throws IOException {
+        long timestamp = record.getLong(offset + Archiver.TIMESTAMP);
+
+        if (current != null && timestamp >= current.timestamp + width) {
+            store();
+            currentOffset += BUCKET_SIZE;
+            current = null;
+        }
+
+        if (current == null) {
+            current = new ArchiveBucket();
+            current.timestamp = timestamp - ((timestamp % width) + width) % width;
+            current.duration = width;
+        }
+
+        current.add(record, offset);
+    }
+
+    public synchronized void flush() throws IOException {
+        if (current != null)
+            store();
+    }
+
+    private void store() throws IOException {
+        io.clear();
+        io.putLong(current.timestamp);
+        io.putInt(current.count);
+        io.putInt(current.valid);
+        io.putInt(current.heater);
+        io.putInt(current.wetter);
+        io.putFloat(current.minTemperature);
+        io.putFloat(current.maxTemperature);
+        io.putFloat(current.meanTemperature);
+        io.putFloat(current.minHumidity);
+        io.putFloat(current.maxHumidity);
+        io.putFloat(current.meanHumidity);
+        io.putFloat(current.neededTemperature);
+        io.putFloat(current.neededHumidity);
+        io.putInt(current.chamberLeft);
+        io.putInt(current.chamberNeutral);
+        io.putInt(current.chamberRight);
+        io.putInt(current.chamberError);
+        io.flip();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long position = currentOffset;
+            while (io.hasRemaining())
+                position += channel.write(io, position);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private ArchiveBucket decode(ByteBuffer bb, int offset) {
+        ArchiveBucket bucket = new ArchiveBucket();
+
+        bucket.timestamp = bb.getLong(offset + B_TIMESTAMP);
+        bucket.duration = width;
+        bucket.count = bb.getInt(offset + B_COUNT);
+        bucket.valid = bb.getInt(offset + B_VALID);
+        bucket.heater = bb.getInt(offset + B_HEATER);
+        bucket.wetter = bb.getInt(offset + B_WETTER);
+        bucket.minTemperature = bb.getFloat(offset + B_MIN_TEMP);
+        bucket.maxTemperature = bb.getFloat(offset + B_MAX_TEMP);
+        bucket.meanTemperature = bb.getFloat(offset + B_MEAN_TEMP);
+        bucket.minHumidity = bb.getFloat(offset + B_MIN_HUMID);
+        bucket.maxHumidity = bb.getFloat(offset + B_MAX_HUMID);
+        bucket.meanHumidity = bb.getFloat(offset + B_MEAN_HUMID);
+        bucket.neededTemperature = bb.getFloat(offset + B_NEEDED_TEMP);
+        bucket.neededHumidity = bb.getFloat(offset + B_NEEDED_HUMID);
+        bucket.chamberLeft = bb.getInt(offset + B_CHAMBER_LEFT);
+        bucket.chamberNeutral = bb.getInt(offset + B_CHAMBER_NEUTRAL);
+        bucket.chamberRight = bb.getInt(offset + B_CHAMBER_RIGHT);
+        bucket.chamberError = bb.getInt(offset + B_CHAMBER_ERROR);
+
+        return bucket;
+    }
+
+    private ArchiveBucket read(long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            io.clear();
+            while (io.hasRemaining()) {
+                if (channel.read(io, offset + io.position()) == -1)
+                    throw new IOException("Unexpected end of rollup " + file);
+            }
+            return decode(io, 0);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /* Returns index of first bucket with timestamp not less than time */
+    private static int findBucket(MappedByteBuffer map, int count, long time) {
+        int low = 0, high = count;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (map.getLong(mid * BUCKET_SIZE + B_TIMESTAMP) < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+
+    public synchronized ArchiveBucket[] getBuckets(long mintime, long maxtime)
+            throws IOException {
+        ArrayList<ArchiveBucket> result = new ArrayList<>();
+
+        /* Buckets before current are complete and never change */
+        int count = (int)(currentOffset / BUCKET_SIZE);
+        if (count > 0) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                MappedByteBuffer map = raf.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, 0, (long) count * BUCKET_SIZE);
+
+                int first = findBucket(map, count, mintime - width + 1);
+                int last = findBucket(map, count, maxtime);
+                for (int i = first; i < last; i++)
+                    result.add(decode(map, i * BUCKET_SIZE));
+            } finally {
+                raf.close();
+            }
+        }
+
+        if (current != null
+                && current.timestamp + width > mintime && current.timestamp < maxtime)
+            result.add(new ArchiveBucket(current));
+
+        ArchiveBucket[] buckets = new ArchiveBucket[result.size()];
+        result.toArray(buckets);
+        return buckets;
+    }
+}
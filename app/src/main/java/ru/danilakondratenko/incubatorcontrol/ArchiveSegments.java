@@ -0,0 +1,352 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+public class ArchiveSegments {
+    /* Segment layout constants */
+    public static final String MANIFEST_FILE_NAME = "manifest.txt";
+    public static final String SEGMENT_EXTENSION = ".blk";
+    public static final String UNFRAMED_EXTENSION = ".dat"; /* Old segments, framed on open */
+    public static final long DEFAULT_PERIOD = 86400000L;
+
+    public static class Segment {
+        public final long start, end;
+        public final File file;
+
+        /* Width of buckets records were downsampled to, 0 for raw records */
+        public final long width;
+
+        Segment(long start, long end, File file) {
+            this(start, end, file, 0);
+        }
+
+        Segment(long start, long end, File file, long width) {
+            this.start = start;
+            this.end = end;
+            this.file = file;
+            this.width = width;
+        }
+
+        public boolean contains(long timestamp) {
+            return timestamp >= start && timestamp < end;
+        }
+    }
+
+    private static final HashMap<String, ArchiveSegments> opened = new HashMap<>();
+
+    private final File dir;
+    private long period = DEFAULT_PERIOD;
+
+    /* Sorted by start, never overlapping */
+    private final ArrayList<Segment> segments = new ArrayList<>();
+
+    /* One instance per directory, so that all archivers in process see the same manifest */
+    public static synchronized ArchiveSegments open(File dir, File legacyArchive)
+            throws IOException {
+        String key = dir.getAbsolutePath();
+        ArchiveSegments result = opened.get(key);
+        if (result == null) {
+            result = new ArchiveSegments(dir);
+            if (legacyArchive != null && legacyArchive.exists())
+                result.migrate(legacyArchive);
+            opened.put(key, result);
+        }
+        return result;
+    }
+
+    private ArchiveSegments(File dir) throws IOException {
+        this.dir = dir;
+
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Cannot create archive directory " + dir);
+
+        loadManifest();
+        frameSegments();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public synchronized long getPeriod() {
+        return period;
+    }
+
+    /* Applies to segments created after the call */
+    public synchronized void setPeriod(long period) {
+        if (period > 0)
+            this.period = period;
+    }
+
+    private File segmentFile(long start) {
+        return new File(dir, start + SEGMENT_EXTENSION);
+    }
+
+    private int findSegment(long timestamp) {
+        int low = 0, high = segments.size() - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Segment segment = segments.get(mid);
+            if (timestamp < segment.start)
+                high = mid - 1;
+            else if (timestamp >= segment.end)
+                low = mid + 1;
+            else
+                return mid;
+        }
+
+        return -(low + 1);
+    }
+
+    public synchronized Segment getSegmentFor(long timestamp) throws IOException {
+        int index = findSegment(timestamp);
+        if (index >= 0)
+            return segments.get(index);
+
+        int insert = -(index + 1);
+        long start = timestamp - ((timestamp % period) + period) % period;
+        long end = start + period;
+
+        if (insert > 0)
+            start = Math.max(start, segments.get(insert - 1).end);
+        if (insert < segments.size())
+            end = Math.min(end, segments.get(insert).start);
+
+        Segment segment = new Segment(start, end, segmentFile(start));
+        segments.add(insert, segment);
+        saveManifest();
+
+        return segment;
+    }
+
+    public synchronized List<Segment> getSegments(long mintime, long maxtime) {
+        ArrayList<Segment> result = new ArrayList<>();
+
+        for (Segment segment : segments) {
+            if (segment.end > mintime && segment.start < maxtime)
+                result.add(segment);
+        }
+
+        return result;
+    }
+
+    public synchronized List<Segment> getSegments() {
+        return new ArrayList<>(segments);
+    }
+
+    /*
+     * Atomically replaces v2 data of segment with file written next to it,
+     * returns false if segment was removed meanwhile. Readers which opened
+     * the old file keep reading it, new ones see only the new file.
+     */
+    public synchronized boolean replace(Segment segment, File v2, long width)
+            throws IOException {
+        int index = segments.indexOf(segment);
+        if (index < 0)
+            return false;
+
+        File target = ArchiveColumns.getV2File(segment.file);
+        if (!v2.renameTo(target))
+            throw new IOException("Cannot replace segment " + target);
+
+        ArchiveBlockCache.getShared().invalidate(target);
+        /* Record numbers have changed, index is rebuilt from new data */
+        ArchiveFlagIndex.forget(segment.file);
+
+        segments.set(index, new Segment(segment.start, segment.end, segment.file, width));
+        saveManifest();
+        return true;
+    }
+
+    /* Removes whole segments ending not later than time */
+    public synchronized int deleteBefore(long time) throws IOException {
+        int count = 0;
+
+        while (!segments.isEmpty() && segments.get(0).end <= time) {
+            Segment segment = segments.remove(0);
+            ArchiveIndex.forget(segment.file);
+            ArchiveFlagIndex.forget(segment.file);
+            File v2 = ArchiveColumns.getV2File(segment.file);
+            ArchiveBlockCache.getShared().invalidate(v2);
+            if (v2.exists() && !v2.delete())
+                throw new IOException("Cannot delete segment " + v2);
+            if (segment.file.exists() && !segment.file.delete())
+                throw new IOException("Cannot delete segment " + segment.file);
+            count++;
+        }
+
+        if (count > 0)
+            saveManifest();
+
+        return count;
+    }
+
+    private void loadManifest() throws IOException {
+        segments.clear();
+
+        File manifest = new File(dir, MANIFEST_FILE_NAME);
+        if (!manifest.exists())
+            return;
+
+        BufferedReader reader = new BufferedReader(new FileReader(manifest));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] args = line.trim().split(" ");
+                if (args[0].compareTo("period") == 0) {
+                    period = Long.parseLong(args[1]);
+                } else if (args[0].compareTo("segment") == 0) {
+                    long start = Long.parseLong(args[1]);
+                    long end = Long.parseLong(args[2]);
+                    long width = (args.length > 3) ? Long.parseLong(args[3]) : 0;
+                    segments.add(new Segment(start, end, segmentFile(start), width));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void saveManifest() throws IOException {
+        File manifest = new File(dir, MANIFEST_FILE_NAME);
+        File temp = new File(dir, MANIFEST_FILE_NAME + ".tmp");
+
+        FileOutputStream fos = new FileOutputStream(temp);
+        PrintStream ps = new PrintStream(fos);
+        try {
+            ps.printf(Locale.US, "period %d\n", period);
+            for (Segment segment : segments) {
+                if (segment.width > 0)
+                    ps.printf(Locale.US, "segment %d %d %d\n",
+                            segment.start, segment.end, segment.width);
+                else
+                    ps.printf(Locale.US, "segment %d %d\n", segment.start, segment.end);
+            }
+            ps.flush();
+            fos.getFD().sync();
+        } finally {
+            ps.close();
+        }
+
+        if (!temp.renameTo(manifest))
+            throw new IOException("Cannot replace archive manifest");
+    }
+
+    /* Rewrites segments of plain records into framed ones */
+    private void frameSegments() throws IOException {
+        for (Segment segment : segments) {
+            File unframed = new File(dir, segment.start + UNFRAMED_EXTENSION);
+            if (!unframed.exists())
+                continue;
+
+            /* Index is named after segment start, so it is rebuilt for framed file */
+            ArchiveIndex.forget(unframed);
+            ArchiveFlagIndex.forget(segment.file);
+            if (segment.file.exists() && !segment.file.delete())
+                throw new IOException("Cannot remove partially framed " + segment.file);
+
+            InputStream istream = new BufferedInputStream(new FileInputStream(unframed));
+            ArchiveWriter writer = new ArchiveWriter(segment.file,
+                    ArchiveFrames.FRAME_RECORDS, Long.MAX_VALUE);
+            try {
+                byte[] buf = new byte[Archiver.RECORD_SIZE];
+                while (readFully(istream, buf))
+                    writer.append(buf);
+                writer.sync();
+            } finally {
+                istream.close();
+                writer.close();
+            }
+
+            if (!unframed.delete())
+                throw new IOException("Cannot remove framed segment " + unframed);
+        }
+    }
+
+    /* Splits old single-file archive into segments, then removes it */
+    private void migrate(File legacyArchive) throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SEGMENT_EXTENSION)
+                        || file.getName().endsWith(UNFRAMED_EXTENSION)) {
+                    ArchiveIndex.forget(file);
+                    ArchiveFlagIndex.forget(file);
+                    ArchiveColumns.getV2File(file).delete();
+                    file.delete();
+                }
+            }
+        }
+        segments.clear();
+
+        InputStream istream = new BufferedInputStream(new FileInputStream(legacyArchive));
+        ArchiveWriter writer = null;
+        Segment current = null;
+        long lastTimestamp = Long.MIN_VALUE;
+
+        try {
+            byte[] buf = new byte[Archiver.RECORD_SIZE];
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+
+            while (readFully(istream, buf)) {
+                long timestamp = bb.getLong(Archiver.TIMESTAMP);
+
+                /* Records written after clock steps back would break time order */
+                if (timestamp < lastTimestamp)
+                    continue;
+                lastTimestamp = timestamp;
+
+                if (current == null || !current.contains(timestamp)) {
+                    if (writer != null) {
+                        writer.sync();
+                        writer.close();
+                    }
+                    current = getSegmentFor(timestamp);
+                    writer = new ArchiveWriter(current.file,
+                            ArchiveFrames.FRAME_RECORDS, Long.MAX_VALUE);
+                }
+
+                writer.append(buf);
+            }
+
+            if (writer != null)
+                writer.sync();
+        } finally {
+            istream.close();
+            if (writer != null)
+                writer.close();
+        }
+
+        saveManifest();
+
+        if (!legacyArchive.delete())
+            throw new IOException("Cannot remove migrated archive " + legacyArchive);
+    }
+
+    private static boolean readFully(InputStream istream, byte[] buf) throws IOException {
+        int offset = 0;
+
+        while (offset < buf.length) {
+            int n = istream.read(buf, offset, buf.length - offset);
+            if (n == -1)
+                return false;
+            offset += n;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,221 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.nio.ByteBuffer;
+
+/* Archive records stored as parallel primitive arrays in record encoding */
+public class ArchiveSeries {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] timestamps;
+    private short[] curTemps, curHumids;
+    private byte[] st, neededTemps, neededHumids, er;
+    private int size;
+
+    ArchiveSeries() {
+        this(INITIAL_CAPACITY);
+    }
+
+    ArchiveSeries(int capacity) {
+        if (capacity < 1)
+            capacity = 1;
+
+        this.timestamps = new long[capacity];
+        this.curTemps = new short[capacity];
+        this.curHumids = new short[capacity];
+        this.st = new byte[capacity];
+        this.neededTemps = new byte[capacity];
+        this.neededHumids = new byte[capacity];
+        this.er = new byte[capacity];
+        this.size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length)
+            return;
+
+        int newCapacity = Math.max(capacity, timestamps.length * 2);
+
+        long[] newTimestamps = new long[newCapacity];
+        System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+        timestamps = newTimestamps;
+
+        curTemps = grow(curTemps, newCapacity);
+        curHumids = grow(curHumids, newCapacity);
+        st = grow(st, newCapacity);
+        neededTemps = grow(neededTemps, newCapacity);
+        neededHumids = grow(neededHumids, newCapacity);
+        er = grow(er, newCapacity);
+    }
+
+    private short[] grow(short[] array, int capacity) {
+        short[] result = new short[capacity];
+        System.arraycopy(array, 0, result, 0, size);
+        return result;
+    }
+
+    private byte[] grow(byte[] array, int capacity) {
+        byte[] result = new byte[capacity];
+        System.arraycopy(array, 0, result, 0, size);
+        return result;
+    }
+
+    public void add(long timestamp, short curTemp, short curHumid,
+                    byte st, byte neededTemp, byte neededHumid, byte er) {
+        ensureCapacity(size + 1);
+
+        this.timestamps[size] = timestamp;
+        this.curTemps[size] = curTemp;
+        this.curHumids[size] = curHumid;
+        this.st[size] = st;
+        this.neededTemps[size] = neededTemp;
+        this.neededHumids[size] = neededHumid;
+        this.er[size] = er;
+        size++;
+    }
+
+    /* Appends record stored at offset of buffer in archive record layout */
+    public void addRecord(ByteBuffer bb, int offset) {
+        add(bb.getLong(offset + Archiver.TIMESTAMP),
+                bb.getShort(offset + Archiver.CUR_TEMP),
+                bb.getShort(offset + Archiver.CUR_HUMID),
+                bb.get(offset + Archiver.ST),
+                bb.get(offset + Archiver.NEEDED_TEMP),
+                bb.get(offset + Archiver.NEEDED_HUMID),
+                bb.get(offset + Archiver.ER));
+    }
+
+    /* Appends record decoded from cloud archive */
+    public void addRecord(ArchiveRecord record) {
+        byte state = (record.heater != 0) ? Archiver.ST_HEATER : Archiver.ST_ZERO;
+        state |= (record.wetter != 0) ? Archiver.ST_WETTER : Archiver.ST_ZERO;
+        state |= ((byte) record.chamber << Archiver.ST_CHAMBER_SHIFT) & Archiver.ST_CHAMBER;
+
+        add(record.timestamp,
+                (short)(record.currentTemperature * 256),
+                (short)(record.currentHumidity * 256),
+                state,
+                (byte)((int)(record.neededTemperature * 10) - 360),
+                (byte)(int) record.neededHumidity,
+                Archiver.ER_ZERO);
+    }
+
+    /* Appends record i of other series */
+    public void add(ArchiveSeries series, int i) {
+        add(series.timestamps[i], series.curTemps[i], series.curHumids[i], series.st[i],
+                series.neededTemps[i], series.neededHumids[i], series.er[i]);
+    }
+
+    public void addAll(ArchiveSeries series) {
+        ensureCapacity(size + series.size);
+
+        System.arraycopy(series.timestamps, 0, timestamps, size, series.size);
+        System.arraycopy(series.curTemps, 0, curTemps, size, series.size);
+        System.arraycopy(series.curHumids, 0, curHumids, size, series.size);
+        System.arraycopy(series.st, 0, st, size, series.size);
+        System.arraycopy(series.neededTemps, 0, neededTemps, size, series.size);
+        System.arraycopy(series.neededHumids, 0, neededHumids, size, series.size);
+        System.arraycopy(series.er, 0, er, size, series.size);
+        size += series.size;
+    }
+
+    /* Shifts all timestamps, e.g. to time elapsed since start of incubation */
+    public void offsetTimestamps(long delta) {
+        for (int i = 0; i < size; i++)
+            timestamps[i] += delta;
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    public float getCurrentTemperature(int i) {
+        return curTemps[i] / 256.0f;
+    }
+
+    public float getCurrentHumidity(int i) {
+        return curHumids[i] / 256.0f;
+    }
+
+    public float getNeededTemperature(int i) {
+        return ((float) neededTemps[i] + 360) / 10.0f;
+    }
+
+    public float getNeededHumidity(int i) {
+        return neededHumids[i];
+    }
+
+    public int getHeater(int i) {
+        return ((st[i] & Archiver.ST_HEATER) == Archiver.ST_HEATER) ? 1 : 0;
+    }
+
+    public int getWetter(int i) {
+        return ((st[i] & Archiver.ST_WETTER) == Archiver.ST_WETTER) ? 1 : 0;
+    }
+
+    public int getChamber(int i) {
+        switch (st[i] & Archiver.ST_CHAMBER) {
+            case Archiver.ST_CHAMBER_LEFT:
+                return IncubatorState.CHAMBER_LEFT;
+            case Archiver.ST_CHAMBER_UNDEF:
+            case Archiver.ST_CHAMBER_RIGHT:
+                return IncubatorState.CHAMBER_RIGHT;
+            case Archiver.ST_CHAMBER_ERROR:
+                return IncubatorState.CHAMBER_ERROR;
+            default:
+                return IncubatorState.CHAMBER_NEUTRAL;
+        }
+    }
+
+    public byte getState(int i) {
+        return st[i];
+    }
+
+    public byte getErrors(int i) {
+        return er[i];
+    }
+
+    /* Writes record i at offset of buffer in archive record layout */
+    public void getRecord(int i, ByteBuffer bb, int offset) {
+        bb.putLong(offset + Archiver.TIMESTAMP, timestamps[i]);
+        bb.putShort(offset + Archiver.CUR_TEMP, curTemps[i]);
+        bb.putShort(offset + Archiver.CUR_HUMID, curHumids[i]);
+        bb.put(offset + Archiver.ST, st[i]);
+        bb.put(offset + Archiver.NEEDED_TEMP, neededTemps[i]);
+        bb.put(offset + Archiver.NEEDED_HUMID, neededHumids[i]);
+        bb.put(offset + Archiver.ER, er[i]);
+    }
+
+    public ArchiveRecord toRecord(int i) {
+        ArchiveRecord record = new ArchiveRecord();
+
+        record.timestamp = getTimestamp(i);
+        record.currentTemperature = getCurrentTemperature(i);
+        record.currentHumidity = getCurrentHumidity(i);
+        record.neededTemperature = getNeededTemperature(i);
+        record.neededHumidity = getNeededHumidity(i);
+        record.heater = getHeater(i);
+        record.wetter = getWetter(i);
+        record.chamber = getChamber(i);
+
+        return record;
+    }
+
+    public ArchiveRecord[] toRecords() {
+        ArchiveRecord[] result = new ArchiveRecord[size];
+        for (int i = 0; i < size; i++)
+            result[i] = toRecord(i);
+        return result;
+    }
+}
@@ -0,0 +1,200 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Statistics query engine. Time range is split into record-aligned chunks,
+ * which are scanned in parallel and merged in time order.
+ */
+public class ArchiveStatistics {
+    /* Query defaults */
+    public static final float DEFAULT_TEMP_TOLERANCE = 0.5f;
+    public static final float DEFAULT_HUMID_TOLERANCE = 5.0f;
+    public static final long DEFAULT_MAX_GAP = 5 * ArchiveFilter.DEFAULT_MAX_INTERVAL;
+
+    /* Downsampled records are width apart, so gap is never shorter than a few widths */
+    public static final int GAP_WIDTHS = 2;
+
+    /* Records per chunk of v1 segment */
+    public static final int CHUNK_RECORDS = 65536;
+
+    private static ForkJoinPool pool;
+
+    /* Part of segment, records [first, last) of v1 file or whole v2 file */
+    private static class Chunk {
+        final File file;
+        final boolean v2;
+        final long first, last;
+        final long maxGap;
+
+        Chunk(File file, boolean v2, long first, long last, long maxGap) {
+            this.file = file;
+            this.v2 = v2;
+            this.first = first;
+            this.last = last;
+            this.maxGap = maxGap;
+        }
+    }
+
+    private final long mintime, maxtime;
+    private final long maxGap;
+    private final float tempTolerance, humidTolerance;
+
+    ArchiveStatistics(long mintime, long maxtime) {
+        this(mintime, maxtime, DEFAULT_MAX_GAP, DEFAULT_TEMP_TOLERANCE, DEFAULT_HUMID_TOLERANCE);
+    }
+
+    ArchiveStatistics(long mintime, long maxtime, long maxGap,
+                      float tempTolerance, float humidTolerance) {
+        this.mintime = mintime;
+        this.maxtime = maxtime;
+        this.maxGap = maxGap;
+        this.tempTolerance = tempTolerance;
+        this.humidTolerance = humidTolerance;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return pool;
+    }
+
+    private ArchiveStats newStats(long maxGap) {
+        return new ArchiveStats(maxGap, tempTolerance, humidTolerance);
+    }
+
+    private List<Chunk> split(List<ArchiveSegments.Segment> segments) throws IOException {
+        ArrayList<Chunk> chunks = new ArrayList<>();
+
+        for (ArchiveSegments.Segment segment : segments) {
+            long gap = Math.max(maxGap, GAP_WIDTHS * segment.width);
+            File v2 = ArchiveColumns.getV2File(segment.file);
+            if (v2.exists()) {
+                chunks.add(new Chunk(v2, true, 0, 0, gap));
+                continue;
+            }
+            if (!segment.file.exists())
+                continue;
+
+            /* Sparse index drops records outside range without reading them */
+            ArchiveIndex index = ArchiveIndex.open(segment.file);
+            long length = ArchiveCommits.getCommittedLength(segment.file);
+            long first = ArchiveFrames.getRecordCount(index.getStartOffset(mintime));
+            long last = ArchiveFrames.getRecordCount(index.getEndOffset(maxtime, length));
+
+            for (long start = first; start < last; start += CHUNK_RECORDS)
+                chunks.add(new Chunk(segment.file, false,
+                        start, Math.min(last, start + CHUNK_RECORDS), gap));
+        }
+
+        return chunks;
+    }
+
+    private void scanV1(Chunk chunk, ArchiveStats stats) throws IOException {
+        FileInputStream istream = new FileInputStream(chunk.file);
+        try {
+            long base = ArchiveFrames.getRecordOffset(chunk.first);
+            long end = ArchiveFrames.getRecordOffset(chunk.last - 1) + Archiver.RECORD_SIZE;
+            MappedByteBuffer map = istream.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, base, end - base);
+
+            for (long i = chunk.first; i < chunk.last; i++) {
+                int offset = (int)(ArchiveFrames.getRecordOffset(i) - base);
+                long timestamp = map.getLong(offset + Archiver.TIMESTAMP);
+                if (timestamp < mintime || timestamp >= maxtime)
+                    continue;
+                stats.add(timestamp,
+                        map.getShort(offset + Archiver.CUR_TEMP),
+                        map.getShort(offset + Archiver.CUR_HUMID),
+                        map.get(offset + Archiver.ST),
+                        map.get(offset + Archiver.NEEDED_TEMP),
+                        map.get(offset + Archiver.NEEDED_HUMID),
+                        map.get(offset + Archiver.ER));
+            }
+        } finally {
+            istream.close();
+        }
+    }
+
+    private void scanV2(Chunk chunk, ArchiveStats stats) throws IOException {
+        ArchiveColumns.Reader reader = new ArchiveColumns.Reader(chunk.file);
+        try {
+            ArchiveColumns.Block block = new ArchiveColumns.Block();
+            while (reader.next(mintime, maxtime, ArchiveColumns.COL_ALL, block)) {
+                for (int i = 0; i < block.count; i++) {
+                    long timestamp = block.timestamps[i];
+                    if (timestamp < mintime || timestamp >= maxtime)
+                        continue;
+                    stats.add(timestamp, block.curTemps[i], block.curHumids[i], block.st[i],
+                            block.neededTemps[i], block.neededHumids[i], block.er[i]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private class ScanTask extends RecursiveTask<ArchiveStats> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Chunk> chunks;
+        private final int from, to;
+
+        ScanTask(List<Chunk> chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected ArchiveStats compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                ScanTask left = new ScanTask(chunks, from, mid);
+                ScanTask right = new ScanTask(chunks, mid, to);
+                right.fork();
+                ArchiveStats result = left.compute();
+                result.merge(right.join());
+                return result;
+            }
+
+            if (to == from)
+                return newStats(maxGap);
+
+            Chunk chunk = chunks.get(from);
+            ArchiveStats stats = newStats(chunk.maxGap);
+            try {
+                if (chunk.v2)
+                    scanV2(chunk, stats);
+                else
+                    scanV1(chunk, stats);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return stats;
+        }
+    }
+
+    public ArchiveStats compute(List<ArchiveSegments.Segment> segments) throws IOException {
+        List<Chunk> chunks = split(segments);
+
+        try {
+            return getPool().invoke(new ScanTask(chunks, 0, chunks.size()));
+        } catch (RuntimeException e) {
+            /* Pool may wrap exception of the task once more */
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+            }
+            throw e;
+        }
+    }
+}
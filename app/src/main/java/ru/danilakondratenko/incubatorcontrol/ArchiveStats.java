@@ -0,0 +1,207 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+/*
+ * Time-weighted statistics of consecutive records. Each record lasts until
+ * the next one unless they are more than maxGap apart. Accumulators of
+ * adjacent time ranges are combined with merge(), maxGap of the following
+ * range is used from then on.
+ */
+public class ArchiveStats {
+    /* Histogram layout, values outside are counted in first and last bins */
+    public static final float TEMP_HISTOGRAM_MIN = 30.0f;
+    public static final float TEMP_HISTOGRAM_STEP = 0.1f;
+    public static final int TEMP_HISTOGRAM_BINS = 150;
+
+    public static final float HUMID_HISTOGRAM_MIN = 0.0f;
+    public static final float HUMID_HISTOGRAM_STEP = 1.0f;
+    public static final int HUMID_HISTOGRAM_BINS = 100;
+
+    /*
+     * Bins per degree or percent and histogram start in record encoding, where
+     * temperature and humidity are multiplied by 256. Steps are 1 / n exactly,
+     * since 0.1 is not a whole number of encoding units.
+     */
+    private static final int TEMP_BINS_PER_UNIT = Math.round(1 / TEMP_HISTOGRAM_STEP);
+    private static final int TEMP_BASE = (int)(TEMP_HISTOGRAM_MIN * 256 + 0.5f);
+    private static final int HUMID_BINS_PER_UNIT = Math.round(1 / HUMID_HISTOGRAM_STEP);
+    private static final int HUMID_BASE = (int)(HUMID_HISTOGRAM_MIN * 256 + 0.5f);
+
+    /* Query parameters in record encoding */
+    private long maxGap;
+    private final int tempTolerance, humidTolerance;
+
+    public long records;
+    public long firstTimestamp, lastTimestamp;
+
+    /* Durations in milliseconds */
+    public long totalTime;
+    public long validTime;
+    public long gapTime;
+    public long heaterTime;
+    public long wetterTime;
+    public long tempAboveTime, tempBelowTime;
+    public long humidAboveTime, humidBelowTime;
+
+    public final long[] tempHistogram = new long[TEMP_HISTOGRAM_BINS];
+    public final long[] humidHistogram = new long[HUMID_HISTOGRAM_BINS];
+
+    public int overheatEpisodes;
+    public int chamberErrorEpisodes;
+
+    /* First and last record, last one is not credited until its end is known */
+    private byte firstEr;
+    private short lastCurTemp, lastCurHumid;
+    private byte lastSt, lastNeededTemp, lastNeededHumid, lastEr;
+
+    ArchiveStats(long maxGap, float tempTolerance, float humidTolerance) {
+        this.maxGap = maxGap;
+        this.tempTolerance = (int)(tempTolerance * 256);
+        this.humidTolerance = (int)(humidTolerance * 256);
+    }
+
+    public boolean isEmpty() {
+        return records == 0;
+    }
+
+    public float getHeaterDuty() {
+        return (totalTime > 0) ? (float) heaterTime / totalTime : ArchiveRecord.NO_DATA_FLOAT;
+    }
+
+    public float getWetterDuty() {
+        return (totalTime > 0) ? (float) wetterTime / totalTime : ArchiveRecord.NO_DATA_FLOAT;
+    }
+
+    /* Share of valid time with temperature outside needed value plus or minus tolerance */
+    public float getTempOutOfBand() {
+        return (validTime > 0)
+                ? (float)(tempAboveTime + tempBelowTime) / validTime : ArchiveRecord.NO_DATA_FLOAT;
+    }
+
+    public float getHumidOutOfBand() {
+        return (validTime > 0)
+                ? (float)(humidAboveTime + humidBelowTime) / validTime : ArchiveRecord.NO_DATA_FLOAT;
+    }
+
+    /* Encoding truncates, so a value on a bin edge may be one unit below it */
+    private static int bin(int value, int base, int binsPerUnit, int bins) {
+        if (value < base)
+            return 0;
+        int result = (value - base + 1) * binsPerUnit / 256;
+        return (result >= bins) ? bins - 1 : result;
+    }
+
+    /* Credits last record with duration until next timestamp */
+    private void credit(long next, long maxGap) {
+        long duration = next - lastTimestamp;
+        if (duration <= 0)
+            return;
+        if (duration > maxGap) {
+            gapTime += duration;
+            return;
+        }
+
+        totalTime += duration;
+        if ((lastSt & Archiver.ST_HEATER) != 0)
+            heaterTime += duration;
+        if ((lastSt & Archiver.ST_WETTER) != 0)
+            wetterTime += duration;
+
+        /* Measurements are not valid without connection to incubator */
+        if ((lastEr & Archiver.ER_NO_INTERNET) != 0)
+            return;
+
+        validTime += duration;
+
+        /* Needed temperature is stored as (t * 10) - 360, needed humidity in percents */
+        int neededTemp = ((lastNeededTemp + 360) * 256) / 10;
+        int neededHumid = lastNeededHumid * 256;
+
+        if (lastCurTemp > neededTemp + tempTolerance)
+            tempAboveTime += duration;
+        else if (lastCurTemp < neededTemp - tempTolerance)
+            tempBelowTime += duration;
+
+        if (lastCurHumid > neededHumid + humidTolerance)
+            humidAboveTime += duration;
+        else if (lastCurHumid < neededHumid - humidTolerance)
+            humidBelowTime += duration;
+
+        tempHistogram[bin(lastCurTemp, TEMP_BASE, TEMP_BINS_PER_UNIT,
+                TEMP_HISTOGRAM_BINS)] += duration;
+        humidHistogram[bin(lastCurHumid, HUMID_BASE, HUMID_BINS_PER_UNIT,
+                HUMID_HISTOGRAM_BINS)] += duration;
+    }
+
+    public void add(long timestamp, short curTemp, short curHumid,
+                    byte st, byte neededTemp, byte neededHumid, byte er) {
+        if (records == 0) {
+            firstTimestamp = timestamp;
+            firstEr = er;
+            if ((er & Archiver.ER_OVERHEAT) != 0)
+                overheatEpisodes++;
+            if ((er & Archiver.ER_CHAMBER_ERROR) != 0)
+                chamberErrorEpisodes++;
+        } else {
+            credit(timestamp, maxGap);
+            if ((er & ~lastEr & Archiver.ER_OVERHEAT) != 0)
+                overheatEpisodes++;
+            if ((er & ~lastEr & Archiver.ER_CHAMBER_ERROR) != 0)
+                chamberErrorEpisodes++;
+        }
+
+        records++;
+        lastTimestamp = timestamp;
+        lastCurTemp = curTemp;
+        lastCurHumid = curHumid;
+        lastSt = st;
+        lastNeededTemp = neededTemp;
+        lastNeededHumid = neededHumid;
+        lastEr = er;
+    }
+
+    /* Appends statistics of range following this one */
+    public void merge(ArchiveStats next) {
+        if (next.isEmpty())
+            return;
+
+        if (isEmpty()) {
+            firstTimestamp = next.firstTimestamp;
+            firstEr = next.firstEr;
+        } else {
+            /* Boundary between raw and downsampled ranges takes longer gap */
+            credit(next.firstTimestamp, Math.max(maxGap, next.maxGap));
+
+            /* Episode running across the boundary was counted twice */
+            if ((lastEr & next.firstEr & Archiver.ER_OVERHEAT) != 0)
+                overheatEpisodes--;
+            if ((lastEr & next.firstEr & Archiver.ER_CHAMBER_ERROR) != 0)
+                chamberErrorEpisodes--;
+        }
+
+        records += next.records;
+        totalTime += next.totalTime;
+        validTime += next.validTime;
+        gapTime += next.gapTime;
+        heaterTime += next.heaterTime;
+        wetterTime += next.wetterTime;
+        tempAboveTime += next.tempAboveTime;
+        tempBelowTime += next.tempBelowTime;
+        humidAboveTime += next.humidAboveTime;
+        humidBelowTime += next.humidBelowTime;
+        for (int i = 0; i < TEMP_HISTOGRAM_BINS; i++)
+            tempHistogram[i] += next.tempHistogram[i];
+        for (int i = 0; i < HUMID_HISTOGRAM_BINS; i++)
+            humidHistogram[i] += next.humidHistogram[i];
+        overheatEpisodes += next.overheatEpisodes;
+        chamberErrorEpisodes += next.chamberErrorEpisodes;
+
+        maxGap = next.maxGap;
+        lastTimestamp = next.lastTimestamp;
+        lastCurTemp = next.lastCurTemp;
+        lastCurHumid = next.lastCurHumid;
+        lastSt = next.lastSt;
+        lastNeededTemp = next.lastNeededTemp;
+        lastNeededHumid = next.lastNeededHumid;
+        lastEr = next.lastEr;
+    }
+}
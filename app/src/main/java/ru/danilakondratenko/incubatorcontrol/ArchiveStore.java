@@ -0,0 +1,28 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Persistence backend of local archive. Archiver uses flat store only, since
+ * cursors, statistics, export, events, rollups, sync and migration read its
+ * segment files. Other backends are compared with it by ArchiveStoreBenchmark.
+ */
+public interface ArchiveStore extends Closeable {
+    /* Appends record at offset of bb, records going back in time may be dropped */
+    void append(ByteBuffer bb, int offset) throws IOException;
+
+    /* Makes appended records visible to queries */
+    void flush() throws IOException;
+
+    /* Records of [mintime, maxtime) in time order */
+    ArchiveSeries query(long mintime, long maxtime) throws IOException;
+
+    long count(long mintime, long maxtime) throws IOException;
+
+    /* Bytes taken on disk */
+    long getSize();
+
+    void close() throws IOException;
+}
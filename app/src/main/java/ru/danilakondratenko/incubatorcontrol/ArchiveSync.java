@@ -0,0 +1,530 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Sync of sealed local archive between devices watching the same incubator.
+ * Time is split into hourly blocks grouped by days: a block is hashed over
+ * its records and a day over starts and hashes of its blocks. Peers compare
+ * day hashes first, then block hashes of differing days only, and exchange
+ * records of missing or different blocks. Received records are merged into
+ * segments as union by timestamp, so both peers end with the same blocks.
+ * Days having segments downsampled by compaction are never exchanged.
+ */
+public class ArchiveSync {
+    /* Protocol constants */
+    public static final int MAGIC = 0x49415331; /* "IAS1" */
+    public static final int VERSION = 1;
+    public static final int DEFAULT_PORT = 8771;
+
+    public static final long BLOCK_WIDTH = 3600000L;
+    public static final long DAY_WIDTH = 86400000L;
+
+    public static final String HASH_ALGORITHM = "SHA-1";
+    public static final int HASH_SIZE = 20;
+    public static final String TEMP_EXTENSION = ".sync";
+
+    /* Limits on data of peer, so that malformed session cannot exhaust memory */
+    public static final int MAX_NODES = 65536; /* About 180 years of day nodes */
+    public static final int MAX_RECORDS = 1 << 20; /* Per message, a day of records 100 ms apart */
+
+    /* Hash of day having downsampled segments, such days are skipped by both peers */
+    private static final byte[] COMPACTED = new byte[HASH_SIZE];
+
+    /* Messages of client, each one except MSG_PUT is answered */
+    public static final int MSG_DAYS   = 1; /* mintime, maxtime -> end of range, day nodes */
+    public static final int MSG_BLOCKS = 2; /* day -> block nodes */
+    public static final int MSG_GET    = 3; /* start, width -> records */
+    public static final int MSG_PUT    = 4; /* start, width, records */
+    public static final int MSG_END    = 5; /* -> number of records received */
+
+    /* Hash of records of [start, start + width), width is BLOCK_WIDTH or DAY_WIDTH */
+    public static class Node {
+        public final long start;
+        public final byte[] hash;
+
+        Node(long start, byte[] hash) {
+            this.start = start;
+            this.hash = hash;
+        }
+    }
+
+    private final ArchiveSegments segments;
+    private final long horizon;
+
+    /* Range agreed with peer */
+    private long mintime = Long.MIN_VALUE, maxtime = Long.MIN_VALUE;
+
+    /* Records of peer in time order, merged by merge() */
+    private final ArchiveSeries received = new ArchiveSeries();
+    private int blocksSent = 0, blocksReceived = 0;
+    /* Earliest record added by last merge() */
+    private long mergedFrom = Long.MAX_VALUE;
+
+    private final ByteBuffer chunk =
+            ByteBuffer.allocate(ArchiveColumns.BLOCK_RECORDS * Archiver.RECORD_SIZE);
+    private final ByteBuffer encoded = ByteBuffer.allocate(ArchiveColumns.BLOCK_HEADER_SIZE
+            + ArchiveColumns.COLUMNS + ArchiveColumns.BLOCK_RECORDS * ArchiveColumns.COLUMNS * 20);
+    private final ArchiveColumns.Block block = new ArchiveColumns.Block();
+
+    /* Records before horizon are synced, it is moved back to start of segment crossing it */
+    ArchiveSync(ArchiveSegments segments, long horizon) {
+        this.segments = segments;
+
+        for (ArchiveSegments.Segment segment : segments.getSegments()) {
+            if (segment.start < horizon && segment.end > horizon)
+                horizon = segment.start;
+        }
+        this.horizon = align(horizon, BLOCK_WIDTH);
+    }
+
+    public long getHorizon() {
+        return horizon;
+    }
+
+    public ArchiveSeries getReceived() {
+        return received;
+    }
+
+    /* Ranges sent to peer and received from it */
+    public int getBlocksSent() {
+        return blocksSent;
+    }
+
+    public int getBlocksReceived() {
+        return blocksReceived;
+    }
+
+    /* Long.MAX_VALUE if nothing was added */
+    public long getMergedFrom() {
+        return mergedFrom;
+    }
+
+    private static long align(long timestamp, long width) {
+        return timestamp - ((timestamp % width) + width) % width;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* True if segment of [start, end) was downsampled, such ranges are not synced */
+    private boolean isCompacted(long start, long end) {
+        for (ArchiveSegments.Segment segment : segments.getSegments(start, end)) {
+            if (segment.width > 0)
+                return true;
+        }
+        return false;
+    }
+
+    /* Hashes of blocks of [mintime, maxtime) having records, each over records in v1 layout */
+    public List<Node> getBlocks(long mintime, long maxtime) throws IOException {
+        ArrayList<Node> result = new ArrayList<>();
+        MessageDigest digest = newDigest();
+        ByteBuffer record = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+        long start = 0;
+        boolean empty = true;
+
+        ArchiveCursor cursor = new ArchiveCursor(segments.getSegments(mintime, maxtime),
+                mintime, maxtime, ArchiveCursor.DEFAULT_BATCH_SIZE);
+        try {
+            while (cursor.next()) {
+                long blockStart = align(cursor.getTimestamp(), BLOCK_WIDTH);
+                if (!empty && blockStart != start)
+                    result.add(new Node(start, digest.digest()));
+                start = blockStart;
+                empty = false;
+
+                cursor.getRecord(record, 0);
+                digest.update(record.array(), 0, Archiver.RECORD_SIZE);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (!empty)
+            result.add(new Node(start, digest.digest()));
+        return result;
+    }
+
+    /*
+     * Hashes of days of [mintime, maxtime) having records, each over its
+     * block nodes, or COMPACTED if day was downsampled.
+     */
+    public List<Node> getDays(long mintime, long maxtime) throws IOException {
+        ArrayList<Node> result = new ArrayList<>();
+        MessageDigest digest = newDigest();
+        ByteBuffer entry = ByteBuffer.allocate(8 + HASH_SIZE);
+        long start = 0;
+        boolean empty = true;
+
+        for (Node node : getBlocks(mintime, maxtime)) {
+            long dayStart = align(node.start, DAY_WIDTH);
+            if (!empty && dayStart != start)
+                result.add(getDay(start, digest));
+            start = dayStart;
+            empty = false;
+
+            entry.clear();
+            entry.putLong(node.start);
+            entry.put(node.hash);
+            digest.update(entry.array());
+        }
+
+        if (!empty)
+            result.add(getDay(start, digest));
+        return result;
+    }
+
+    private Node getDay(long start, MessageDigest digest) {
+        byte[] hash = digest.digest();
+        return new Node(start, isCompacted(start, start + DAY_WIDTH) ? COMPACTED : hash);
+    }
+
+    private static boolean isSynced(Node node) {
+        return !Arrays.equals(node.hash, COMPACTED);
+    }
+
+    private static void writeNodes(DataOutputStream out, List<Node> nodes) throws IOException {
+        out.writeInt(nodes.size());
+        for (Node node : nodes) {
+            out.writeLong(node.start);
+            out.write(node.hash);
+        }
+    }
+
+    private static List<Node> readNodes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_NODES)
+            throw new IOException("Bad node count " + count);
+
+        ArrayList<Node> nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long start = in.readLong();
+            byte[] hash = new byte[HASH_SIZE];
+            in.readFully(hash);
+            nodes.add(new Node(start, hash));
+        }
+        return nodes;
+    }
+
+    /* Sends records of [start, start + width) inside agreed range as encoded v2 blocks */
+    private void writeRecords(DataOutputStream out, long start, long width) throws IOException {
+        long from = Math.max(start, mintime), to = Math.min(start + width, maxtime);
+        int count = 0;
+
+        ArchiveCursor cursor = new ArchiveCursor(segments.getSegments(from, to),
+                from, to, ArchiveCursor.DEFAULT_BATCH_SIZE);
+        try {
+            while (cursor.next()) {
+                cursor.getRecord(chunk, count * Archiver.RECORD_SIZE);
+                if (++count == ArchiveColumns.BLOCK_RECORDS) {
+                    writeChunk(out, count);
+                    count = 0;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (count > 0)
+            writeChunk(out, count);
+        out.writeInt(0);
+        blocksSent++;
+    }
+
+    private void writeChunk(DataOutputStream out, int count) throws IOException {
+        encoded.clear();
+        int length = ArchiveColumns.encodeBlock(chunk, 0, count, encoded);
+        out.writeInt(length);
+        out.write(encoded.array(), 0, length);
+    }
+
+    /* Adds records sent by writeRecords() to received ones */
+    private void readRecords(DataInputStream in) throws IOException {
+        int length, records = 0;
+        while ((length = in.readInt()) != 0) {
+            if (length < ArchiveColumns.BLOCK_HEADER_SIZE || length > encoded.capacity())
+                throw new IOException("Bad chunk length " + length);
+
+            encoded.clear();
+            in.readFully(encoded.array(), 0, length);
+            encoded.limit(length);
+
+            int count = encoded.getInt(ArchiveColumns.BH_COUNT);
+            if (count < 0 || count > ArchiveColumns.BLOCK_RECORDS)
+                throw new IOException("Bad chunk record count " + count);
+            records += count;
+            if (records > MAX_RECORDS)
+                throw new IOException("Too many records in message");
+
+            try {
+                ArchiveColumns.decodeBlock(encoded, ArchiveColumns.COL_ALL, block);
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed chunk", e);
+            }
+
+            for (int i = 0; i < block.count; i++) {
+                received.add(block.timestamps[i], block.curTemps[i], block.curHumids[i],
+                        block.st[i], block.neededTemps[i], block.neededHumids[i], block.er[i]);
+            }
+        }
+        blocksReceived++;
+    }
+
+    /* Opens session for archive of incubator, empty address for archive before namespaces */
+    public static void writeHello(DataOutputStream out, String incubator) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF((incubator != null) ? incubator : "");
+        out.flush();
+    }
+
+    /* Returns address of incubator asked by client */
+    public static String readHello(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not an archive sync peer");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported sync version " + version);
+        return in.readUTF();
+    }
+
+    /*
+     * Client side, called after writeHello(). Pulls blocks of [mintime, horizon)
+     * which peer has and pushes ones which it lacks or has different.
+     * Returns number of received records, they are merged by merge().
+     */
+    public int sync(DataInputStream in, DataOutputStream out, long mintime) throws IOException {
+        out.writeByte(MSG_DAYS);
+        out.writeLong(mintime);
+        out.writeLong(horizon);
+        out.flush();
+
+        this.mintime = mintime;
+        this.maxtime = in.readLong();
+        List<Node> remote = readNodes(in);
+        List<Node> local = getDays(this.mintime, this.maxtime);
+
+        int i = 0, j = 0;
+        while (i < local.size() || j < remote.size()) {
+            Node mine = (i < local.size()) ? local.get(i) : null;
+            Node theirs = (j < remote.size()) ? remote.get(j) : null;
+
+            if (theirs == null || (mine != null && mine.start < theirs.start)) {
+                i++;
+                if (isSynced(mine))
+                    put(in, out, mine.start, DAY_WIDTH);
+            } else if (mine == null || theirs.start < mine.start) {
+                j++;
+                if (isSynced(theirs) && !isCompacted(theirs.start, theirs.start + DAY_WIDTH))
+                    get(in, out, theirs.start, DAY_WIDTH);
+            } else {
+                i++;
+                j++;
+                if (isSynced(mine) && isSynced(theirs) && !Arrays.equals(mine.hash, theirs.hash))
+                    syncDay(in, out, mine.start);
+            }
+        }
+
+        out.writeByte(MSG_END);
+        out.flush();
+        in.readInt();
+        return received.size();
+    }
+
+    private void syncDay(DataInputStream in, DataOutputStream out, long day) throws IOException {
+        out.writeByte(MSG_BLOCKS);
+        out.writeLong(day);
+        out.flush();
+
+        List<Node> remote = readNodes(in);
+        List<Node> local = getBlocks(Math.max(day, mintime), Math.min(day + DAY_WIDTH, maxtime));
+
+        int i = 0, j = 0;
+        while (i < local.size() || j < remote.size()) {
+            Node mine = (i < local.size()) ? local.get(i) : null;
+            Node theirs = (j < remote.size()) ? remote.get(j) : null;
+
+            if (theirs == null || (mine != null && mine.start < theirs.start)) {
+                i++;
+                put(in, out, mine.start, BLOCK_WIDTH);
+            } else if (mine == null || theirs.start < mine.start) {
+                j++;
+                get(in, out, theirs.start, BLOCK_WIDTH);
+            } else {
+                i++;
+                j++;
+                if (!Arrays.equals(mine.hash, theirs.hash)) {
+                    get(in, out, mine.start, BLOCK_WIDTH);
+                    put(in, out, mine.start, BLOCK_WIDTH);
+                }
+            }
+        }
+    }
+
+    private void get(DataInputStream in, DataOutputStream out, long start, long width)
+            throws IOException {
+        out.writeByte(MSG_GET);
+        out.writeLong(start);
+        out.writeLong(width);
+        out.flush();
+        readRecords(in);
+    }
+
+    private void put(DataInputStream in, DataOutputStream out, long start, long width)
+            throws IOException {
+        out.writeByte(MSG_PUT);
+        out.writeLong(start);
+        out.writeLong(width);
+        writeRecords(out, start, width);
+    }
+
+    /*
+     * Server side, called after readHello(). Answers client until it ends
+     * session, returns number of received records, they are merged by merge().
+     */
+    public int serve(DataInputStream in, DataOutputStream out) throws IOException {
+        while (true) {
+            int message = in.readByte();
+            switch (message) {
+                case MSG_DAYS: {
+                    mintime = in.readLong();
+                    maxtime = Math.min(in.readLong(), horizon);
+                    out.writeLong(maxtime);
+                    writeNodes(out, getDays(mintime, maxtime));
+                    break;
+                }
+                case MSG_BLOCKS: {
+                    long day = in.readLong();
+                    writeNodes(out, getBlocks(Math.max(day, mintime),
+                            Math.min(day + DAY_WIDTH, maxtime)));
+                    break;
+                }
+                case MSG_GET: {
+                    long start = in.readLong();
+                    long width = in.readLong();
+                    writeRecords(out, start, width);
+                    break;
+                }
+                case MSG_PUT: {
+                    in.readLong();
+                    in.readLong();
+                    readRecords(in);
+                    continue;
+                }
+                case MSG_END: {
+                    out.writeInt(received.size());
+                    out.flush();
+                    return received.size();
+                }
+                default:
+                    throw new IOException("Unknown sync message " + message);
+            }
+            out.flush();
+        }
+    }
+
+    /*
+     * Merges received records into segments before horizon, records of peer
+     * with timestamps already present are dropped. Each changed segment is
+     * rewritten into v2 file. Returns number of added records.
+     */
+    public int merge() throws IOException {
+        int added = 0;
+        int i = 0;
+
+        mergedFrom = Long.MAX_VALUE;
+        while (i < received.size()) {
+            long timestamp = received.getTimestamp(i);
+            if (timestamp >= horizon)
+                break;
+
+            ArchiveSegments.Segment segment = segments.getSegmentFor(timestamp);
+            int end = i;
+            while (end < received.size() && received.getTimestamp(end) < segment.end)
+                end++;
+
+            if (segment.width == 0 && segment.end <= horizon)
+                added += mergeSegment(segment, i, end);
+            i = end;
+        }
+
+        received.clear();
+        return added;
+    }
+
+    /* Segment held by a writer is left as it is, nothing is added to it */
+    private int mergeSegment(ArchiveSegments.Segment segment, int from, int to)
+            throws IOException {
+        if (!ArchiveCommits.beginSeal(segment.file))
+            return 0;
+        try {
+            return mergeSealed(segment, from, to);
+        } finally {
+            ArchiveCommits.endSeal(segment.file);
+        }
+    }
+
+    private int mergeSealed(ArchiveSegments.Segment segment, int from, int to)
+            throws IOException {
+        File v2 = ArchiveColumns.getV2File(segment.file);
+        File temp = new File(v2.getPath() + TEMP_EXTENSION);
+        ByteBuffer record = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+        int added = 0;
+        long first = Long.MAX_VALUE;
+        int i = from;
+
+        ArchiveCursor cursor = new ArchiveCursor(Collections.singletonList(segment),
+                segment.start, segment.end, ArchiveCursor.DEFAULT_BATCH_SIZE);
+        ArchiveColumns.Writer writer = new ArchiveColumns.Writer(temp);
+        try {
+            boolean local = cursor.next();
+            while (local || i < to) {
+                if (local && (i == to || cursor.getTimestamp() <= received.getTimestamp(i))) {
+                    if (i < to && cursor.getTimestamp() == received.getTimestamp(i))
+                        i++;
+                    cursor.getRecord(record, 0);
+                    local = cursor.next();
+                } else {
+                    if (added == 0)
+                        first = received.getTimestamp(i);
+                    received.getRecord(i++, record, 0);
+                    added++;
+                }
+                writer.append(record, 0);
+            }
+        } finally {
+            cursor.close();
+            writer.close();
+        }
+
+        if (added == 0 || !segments.replace(segment, temp, 0)) {
+            temp.delete();
+            return 0;
+        }
+
+        /* Readers prefer v2 file, so v1 data is dropped as after migration */
+        if (segment.file.exists()) {
+            ArchiveIndex.forget(segment.file);
+            if (!segment.file.delete())
+                throw new IOException("Cannot remove merged segment " + segment.file);
+        }
+        mergedFrom = Math.min(mergedFrom, first);
+        return added;
+    }
+}
@@ -0,0 +1,157 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Most recent records of archive kept in memory as ring of primitive arrays.
+ * It is filled by the writer of archive, so that live graphs are drawn without
+ * reading files. Tail only answers ranges it has seen from the beginning,
+ * older ranges must be read from the store.
+ */
+public class ArchiveTail {
+    /* Window of tail in minutes, records come at most once per polling period */
+    public static final int DEFAULT_MINUTES = 30;
+    public static final long POLL_PERIOD = 2000L; /* IncubatorStateActivity.REQ_TIMEOUT */
+    public static final int DEFAULT_CAPACITY = (int)(DEFAULT_MINUTES * 60000L / POLL_PERIOD);
+
+    private static final HashMap<String, ArchiveTail> opened = new HashMap<>();
+
+    private final long[] timestamps;
+    private final short[] curTemps, curHumids;
+    private final byte[] st, neededTemps, neededHumids, er;
+
+    /* Index of oldest record and number of records in ring */
+    private int head = 0;
+    private int size = 0;
+
+    /* Records at and after this time were all added to tail */
+    private long coveredSince = Long.MAX_VALUE;
+
+    /* One instance per archive directory, shared by all archivers in process */
+    public static synchronized ArchiveTail open(File dir) {
+        String key = dir.getAbsolutePath();
+        ArchiveTail result = opened.get(key);
+        if (result == null) {
+            result = new ArchiveTail(DEFAULT_CAPACITY);
+            opened.put(key, result);
+        }
+        return result;
+    }
+
+    ArchiveTail(int capacity) {
+        if (capacity < 1)
+            capacity = 1;
+
+        this.timestamps = new long[capacity];
+        this.curTemps = new short[capacity];
+        this.curHumids = new short[capacity];
+        this.st = new byte[capacity];
+        this.neededTemps = new byte[capacity];
+        this.neededHumids = new byte[capacity];
+        this.er = new byte[capacity];
+    }
+
+    public int getCapacity() {
+        return timestamps.length;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /* Oldest time answered from memory, Long.MAX_VALUE while tail is empty */
+    public synchronized long getCoveredSince() {
+        return coveredSince;
+    }
+
+    /* Adds record at offset of bb, overwrites the oldest one when ring is full */
+    public synchronized void add(ByteBuffer bb, int offset) {
+        int capacity = timestamps.length;
+        int i = head + size;
+        if (i >= capacity)
+            i -= capacity;
+
+        long timestamp = bb.getLong(offset + Archiver.TIMESTAMP);
+        timestamps[i] = timestamp;
+        curTemps[i] = bb.getShort(offset + Archiver.CUR_TEMP);
+        curHumids[i] = bb.getShort(offset + Archiver.CUR_HUMID);
+        st[i] = bb.get(offset + Archiver.ST);
+        neededTemps[i] = bb.get(offset + Archiver.NEEDED_TEMP);
+        neededHumids[i] = bb.get(offset + Archiver.NEEDED_HUMID);
+        er[i] = bb.get(offset + Archiver.ER);
+
+        if (size < capacity) {
+            size++;
+            if (size == 1)
+                coveredSince = timestamp;
+        } else {
+            head = (head + 1 == capacity) ? 0 : head + 1;
+            /* Records before the new oldest one are only in the store now */
+            coveredSince = timestamps[head];
+        }
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+        coveredSince = Long.MAX_VALUE;
+    }
+
+    public synchronized boolean covers(long mintime) {
+        return size > 0 && mintime >= coveredSince;
+    }
+
+    /* Records of [mintime, maxtime), null if part of range may be only in the store */
+    public synchronized ArchiveSeries query(long mintime, long maxtime) {
+        if (!covers(mintime))
+            return null;
+
+        int capacity = timestamps.length;
+        ArchiveSeries result = new ArchiveSeries(size);
+        for (int n = 0, i = head; n < size; n++, i = (i + 1 == capacity) ? 0 : i + 1) {
+            long timestamp = timestamps[i];
+            if (timestamp < mintime || timestamp >= maxtime)
+                continue;
+            result.add(timestamp, curTemps[i], curHumids[i], st[i],
+                    neededTemps[i], neededHumids[i], er[i]);
+        }
+        return result;
+    }
+
+    /* Same intervals as flag index gives for [mintime, maxtime), null if not covered */
+    public synchronized ArchiveEvent[] findEvents(ArchiveEventExpression expr,
+                                                  long mintime, long maxtime) {
+        if (!covers(mintime))
+            return null;
+
+        int capacity = timestamps.length;
+        ArrayList<ArchiveEvent> events = new ArrayList<>();
+        boolean inEvent = false;
+        long eventStart = 0, lastTimestamp = 0;
+
+        for (int n = 0, i = head; n < size; n++, i = (i + 1 == capacity) ? 0 : i + 1) {
+            long timestamp = timestamps[i];
+            if (timestamp >= maxtime)
+                break;
+
+            boolean matches = expr.matches(ArchiveFlagIndex.getFlags(st[i], er[i]));
+            if (matches && !inEvent) {
+                eventStart = timestamp;
+                inEvent = true;
+            } else if (!matches && inEvent) {
+                if (timestamp >= mintime)
+                    events.add(new ArchiveEvent(Math.max(eventStart, mintime), timestamp));
+                inEvent = false;
+            }
+            lastTimestamp = timestamp;
+        }
+
+        if (inEvent && lastTimestamp >= mintime)
+            events.add(new ArchiveEvent(Math.max(eventStart, mintime), lastTimestamp));
+
+        return events.toArray(new ArchiveEvent[0]);
+    }
+}
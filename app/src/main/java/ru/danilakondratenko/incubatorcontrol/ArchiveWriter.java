@@ -0,0 +1,258 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+public class ArchiveWriter {
+    /* Group commit defaults */
+    public static final int DEFAULT_COMMIT_RECORDS = 16;
+    public static final long DEFAULT_COMMIT_INTERVAL = 5000;
+
+    private final File file;
+    private final int commitRecords;
+    private final long commitInterval;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] checked;
+    private final ByteBuffer header = ByteBuffer.allocate(ArchiveFrames.HEADER_SIZE);
+    private long lastCommitTime;
+
+    /* Checksum of records already written to the last frame */
+    private final CRC32 crc = new CRC32();
+
+    private final ArchiveIndex index;
+    private final ArchiveFlagIndex flags;
+    private long recordCount;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    /* Write statistics */
+    private long recordsWritten = 0;
+    private long commitsDone = 0;
+    private long commitNanos = 0;
+
+    ArchiveWriter(File file) throws IOException {
+        this(file, DEFAULT_COMMIT_RECORDS, DEFAULT_COMMIT_INTERVAL);
+    }
+
+    ArchiveWriter(File file, int commitRecords, long commitInterval) throws IOException {
+        if (commitRecords < 1)
+            commitRecords = 1;
+
+        this.file = file;
+        this.commitRecords = commitRecords;
+        this.commitInterval = commitInterval;
+
+        /* Channel writes direct buffer as is, checksum is taken from a heap copy */
+        this.buffer = ByteBuffer.allocateDirect(commitRecords * Archiver.RECORD_SIZE);
+        this.checked = new byte[commitRecords * Archiver.RECORD_SIZE];
+
+        ArchiveCommits.register(file);
+        try {
+            this.raf = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            ArchiveCommits.unregister(file);
+            throw e;
+        }
+        this.channel = raf.getChannel();
+        try {
+            /* Torn tail left by a crash is cut off before index sees it */
+            this.recordCount = ArchiveFrames.getRecordCount(ArchiveFrames.recover(channel, crc));
+            if (recordCount > 0) {
+                /* Appends must not go back in time, so the last timestamp is kept */
+                ByteBuffer last = ByteBuffer.allocate(Archiver.TIMESTAMP_LEN);
+                long position = ArchiveFrames.getRecordOffset(recordCount - 1)
+                        + Archiver.TIMESTAMP;
+                while (last.hasRemaining()) {
+                    if (channel.read(last, position + last.position()) == -1)
+                        break;
+                }
+                this.lastTimestamp = last.getLong(0);
+            }
+            ArchiveCommits.publish(file, recordCount);
+            this.index = ArchiveIndex.open(file);
+            this.flags = ArchiveFlagIndex.open(file);
+        } catch (IOException e) {
+            ArchiveCommits.forget(file);
+            ArchiveCommits.unregister(file);
+            raf.close();
+            throw e;
+        }
+        this.lastCommitTime = System.currentTimeMillis();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    /* Timestamp of the last record appended, Long.MIN_VALUE for empty segment */
+    public synchronized long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public synchronized void append(byte[] record) throws IOException {
+        append(ByteBuffer.wrap(record), 0);
+    }
+
+    /* Copies record at offset of bb into commit buffer without allocation */
+    public synchronized void append(ByteBuffer bb, int offset) throws IOException {
+        if (channel == null)
+            throw new IOException("Archive writer is closed");
+
+        lastTimestamp = bb.getLong(offset + Archiver.TIMESTAMP);
+        buffer.putLong(bb.getLong(offset));
+        buffer.putLong(bb.getLong(offset + 8));
+
+        if (!buffer.hasRemaining()
+                || System.currentTimeMillis() - lastCommitTime >= commitInterval)
+            flush();
+    }
+
+    /*
+     * Writes pending records frame by frame. Each frame part is committed only
+     * after its records and header are written. On failure, records not
+     * committed stay pending and the checksum is taken again from the file, so
+     * a retry writes them again with a matching header.
+     */
+    public synchronized void flush() throws IOException {
+        if (channel == null)
+            return;
+
+        lastCommitTime = System.currentTimeMillis();
+        if (buffer.position() == 0)
+            return;
+
+        long start = System.nanoTime();
+        int records = buffer.position() / Archiver.RECORD_SIZE;
+        int done = 0;
+
+        try {
+            /* Records go first, then header of their frame covering them */
+            while (done < records) {
+                long record = recordCount;
+                long frame = record / ArchiveFrames.FRAME_RECORDS;
+                int inFrame = (int)(record % ArchiveFrames.FRAME_RECORDS);
+                int n = Math.min(records - done, ArchiveFrames.FRAME_RECORDS - inFrame);
+
+                buffer.limit((done + n) * Archiver.RECORD_SIZE);
+                buffer.position(done * Archiver.RECORD_SIZE);
+                buffer.get(checked, 0, n * Archiver.RECORD_SIZE);
+                crc.update(checked, 0, n * Archiver.RECORD_SIZE);
+
+                buffer.position(done * Archiver.RECORD_SIZE);
+                long position = ArchiveFrames.getRecordOffset(record);
+                while (buffer.hasRemaining())
+                    position += channel.write(buffer, position);
+
+                header.clear();
+                ArchiveFrames.putHeader(header, frame, inFrame + n, (int) crc.getValue());
+                header.flip();
+                position = ArchiveFrames.getFrameOffset(frame);
+                while (header.hasRemaining())
+                    position += channel.write(header, position);
+
+                if (inFrame + n == ArchiveFrames.FRAME_RECORDS)
+                    crc.reset();
+                done += n;
+                commitRecords(done - n, n);
+            }
+        } catch (IOException e) {
+            restore(done, records);
+            throw e;
+        }
+
+        buffer.clear();
+
+        commitNanos += System.nanoTime() - start;
+        commitsDone++;
+    }
+
+    /* Records [from, from + n) of buffer are covered by frame header */
+    private void commitRecords(int from, int n) throws IOException {
+        long first = recordCount;
+        recordCount += n;
+        recordsWritten += n;
+
+        /* Readers may see records once their frame header covers them */
+        ArchiveCommits.publish(file, recordCount);
+
+        for (int i = 0; i < n; i++) {
+            index.onRecord(first + i,
+                    buffer.getLong((from + i) * Archiver.RECORD_SIZE + Archiver.TIMESTAMP),
+                    ArchiveFrames.getRecordOffset(first + i));
+        }
+        buffer.limit((from + n) * Archiver.RECORD_SIZE);
+        buffer.position(from * Archiver.RECORD_SIZE);
+        flags.onRecords(buffer.slice(), first, n);
+    }
+
+    /* Keeps records [done, records) pending and checksum matching the file */
+    private void restore(int done, int records) {
+        buffer.limit(records * Archiver.RECORD_SIZE);
+        buffer.position(done * Archiver.RECORD_SIZE);
+        buffer.compact();
+
+        /* Last frame may be full, then the next one starts with empty checksum */
+        if (recordCount % ArchiveFrames.FRAME_RECORDS == 0) {
+            crc.reset();
+            return;
+        }
+        try {
+            ArchiveFrames.validate(channel, crc);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Commits pending records and forces them to storage */
+    public synchronized void sync() throws IOException {
+        if (channel == null)
+            return;
+
+        flush();
+        channel.force(true);
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel == null)
+            return;
+
+        try {
+            flush();
+        } finally {
+            channel = null;
+            raf.close();
+            raf = null;
+            ArchiveCommits.forget(file);
+            ArchiveCommits.unregister(file);
+        }
+    }
+
+    public synchronized int getPendingRecords() {
+        return buffer.position() / Archiver.RECORD_SIZE;
+    }
+
+    public synchronized long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    public synchronized long getCommits() {
+        return commitsDone;
+    }
+
+    /* Records per second spent inside commits, 0 if nothing was written */
+    public synchronized double getThroughput() {
+        if (commitNanos == 0)
+            return 0;
+        return recordsWritten * 1e9 / commitNanos;
+    }
+}
@@ -2,13 +2,17 @@ package ru.danilakondratenko.incubatorcontrol;
 
 import android.content.Context;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -23,7 +27,8 @@ import retrofit2.converter.scalars.ScalarsConverterFactory;
 
 public class Archiver {
     /* Archive constants */
-    public static final String ARCHIVE_FILE_NAME = "archive.dat";
+    public static final String ARCHIVE_DIR_NAME = "archive";
+    public static final String ARCHIVE_FILE_NAME = "archive.dat"; /* Legacy, migrated on open */
     public static final int RECORD_SIZE = 16;
 
     /* Archive state masks */
@@ -66,14 +71,44 @@ public class Archiver {
     public static final int TIMESTAMP_LEN      = 8;
     public static final int CUR_TEMP_LEN       = 2;
     public static final int CUR_HUMID_LEN      = 2;
+
     private static final String DEFAULT_CLOUD_ARCHIVE_ADDRESS = "185.26.121.126";
     private static final long REQ_TIMEOUT = 2000;
 
+    /* Segments are converted to v2 this long after their end */
+    private static final long V2_MIGRATION_DELAY = 3600000L;
+
+    /* Local gaps longer than this are filled from cloud archive in hybrid mode */
+    public static final long HYBRID_MAX_GAP = ArchiveStatistics.DEFAULT_MAX_GAP;
+
+    /* Archivers of activity, compaction job and sync may rewrite the same segments */
+    private static final Object migrationLock = new Object();
+
     private ExecutorService executor;
 
     Context context;
     String cloudArchiveAddress;
 
+    private ArchiveStore store;
+    private long segmentPeriod = ArchiveSegments.DEFAULT_PERIOD;
+    private ArchiveRollup[] rollups;
+    private ArchiveTail tail;
+    private ArchiveCycles cycles;
+
+    /* Normalized address of incubator, null for archive before namespaces */
+    private volatile String incubator;
+
+    /* Records are encoded into queue slots by callers and persisted on writer thread */
+    private ArchiveQueue queue;
+    private int queueCapacity = ArchiveQueue.DEFAULT_CAPACITY;
+    private int queuePolicy = ArchiveQueue.FULL_DROP_NEWEST;
+
+    private int commitRecords = ArchiveWriter.DEFAULT_COMMIT_RECORDS;
+    private long commitInterval = ArchiveWriter.DEFAULT_COMMIT_INTERVAL;
+
+    /* Lossless by default: drops duplicates and exactly linear runs only */
+    private ArchiveFilter filter = new ArchiveFilter(0, 0);
+
     Archiver(Context context) {
         this.executor = Executors.newSingleThreadExecutor();
 
@@ -81,6 +116,132 @@ public class Archiver {
         this.cloudArchiveAddress = DEFAULT_CLOUD_ARCHIVE_ADDRESS;
     }
 
+    Archiver(Context context, String incubator) {
+        this(context);
+        this.incubator = ArchiveRegistry.normalize(incubator);
+    }
+
+    public ArchiveRegistry getLocalArchiveRegistry() throws IOException {
+        return ArchiveRegistry.open(context.getFilesDir());
+    }
+
+    public List<ArchiveRegistry.Incubator> getKnownIncubators() {
+        try {
+            return getLocalArchiveRegistry().getIncubators();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public String getIncubator() {
+        return incubator;
+    }
+
+    /* Records queued before the call go to archive of previous incubator */
+    public void setIncubator(String address) {
+        drainWriteQueue();
+
+        synchronized (this) {
+            String key = ArchiveRegistry.normalize(address);
+            if (key.equals(incubator))
+                return;
+
+            closeLocalArchiveStore();
+            try {
+                flushLocalArchiveRollups();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            rollups = null;
+            tail = null;
+            cycles = null;
+            incubator = key;
+        }
+    }
+
+    /* Directory of current namespace in files dir, also base name of its database */
+    private String getNamespaceDirectory() throws IOException {
+        String current = incubator;
+        if (current == null)
+            return ARCHIVE_DIR_NAME;
+        return getLocalArchiveRegistry().register(current).directory;
+    }
+
+    public synchronized void setGroupCommit(int records, long interval) throws IOException {
+        commitRecords = records;
+        commitInterval = interval;
+        if (queue != null)
+            queue.setFlushInterval(interval);
+        if (store instanceof FlatArchiveStore) {
+            store.close();
+            store = null;
+        }
+    }
+
+    public synchronized ArchiveStore getLocalArchiveStore() throws IOException {
+        if (store == null)
+            store = new FlatArchiveStore(getLocalArchiveSegments(), commitRecords, commitInterval);
+        return store;
+    }
+
+    /* Error bounds are in degrees and percents, 0 keeps every change */
+    public synchronized void setWriteFilter(float temperatureError, float humidityError,
+                                            long maxInterval) throws IOException {
+        writeFiltered(filter.flush());
+        filter = new ArchiveFilter(temperatureError, humidityError, maxInterval);
+    }
+
+    public synchronized ArchiveFilter getWriteFilter() {
+        return filter;
+    }
+
+    /* Takes effect after queued records are written */
+    public void setWriteQueue(int capacity, int policy) {
+        ArchiveQueue old;
+        synchronized (this) {
+            queueCapacity = capacity;
+            queuePolicy = policy;
+            old = queue;
+            queue = null;
+        }
+        if (old != null)
+            old.close();
+    }
+
+    public synchronized ArchiveQueue getWriteQueue() {
+        if (queue == null) {
+            queue = new ArchiveQueue(new ArchiveQueue.Sink() {
+                @Override
+                public void write(ByteBuffer record, int offset, long cycleStart)
+                        throws IOException {
+                    persistRecord(record, offset, cycleStart);
+                }
+
+                @Override
+                public void flush() {
+                    flushLocalArchiveStore();
+                }
+            }, queueCapacity, queuePolicy, commitInterval);
+        }
+        return queue;
+    }
+
+    /* Memory for decoded v2 blocks, shared by all archivers in process */
+    public void setBlockCacheBudget(long bytes) {
+        ArchiveBlockCache.getShared().setBudget(bytes);
+    }
+
+    public ArchiveBlockCache getBlockCache() {
+        return ArchiveBlockCache.getShared();
+    }
+
+    public synchronized void setSegmentPeriod(long period) {
+        segmentPeriod = period;
+        if (store instanceof FlatArchiveStore)
+            ((FlatArchiveStore) store).getSegments().setPeriod(period);
+    }
+
     public void retrieveCloudArchiveAddress(String incubatorAddress) {
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl("http://" + incubatorAddress)
@@ -107,25 +268,19 @@ public class Archiver {
         }
     }
 
-    public File getLocalArchiveFile() {
-        File result = null;
-        boolean resultState = true;
-        try {
-            result = new File(context.getFilesDir(), ARCHIVE_FILE_NAME);
-            if (!result.exists())
-                resultState = resultState && result.createNewFile();
-            resultState = resultState && result.setWritable(true);
-            resultState = resultState && result.setReadable(true);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        if (resultState)
-            return result;
-        else
-            return null;
+    public ArchiveSegments getLocalArchiveSegments() throws IOException {
+        String directory = getNamespaceDirectory();
+        File legacy = (directory.compareTo(ARCHIVE_DIR_NAME) == 0)
+                ? new File(context.getFilesDir(), ARCHIVE_FILE_NAME) : null;
+        ArchiveSegments segments = ArchiveSegments.open(
+                new File(context.getFilesDir(), directory), legacy);
+        segments.setPeriod(segmentPeriod);
+        return segments;
     }
 
-    public byte[] getLocalArchiveRecord(IncubatorState state, IncubatorConfig cfg) {
+    /* Writes record for state and config at offset of bb, allocates nothing */
+    public static void encodeRecord(IncubatorState state, IncubatorConfig cfg,
+                                    ByteBuffer bb, int offset) {
         short curTemp, curHumid;
         curTemp = (short)(state.currentTemperature * 256);
         curHumid = (short)(state.currentHumidity * 256);
@@ -149,40 +304,32 @@ public class Archiver {
         er |= (!state.internet || !state.isCorrect() || !cfg.isCorrect())
                 ? ER_NO_INTERNET : ER_ZERO;
 
-        ByteBuffer bb = ByteBuffer.allocate(16);
-        bb.putLong(state.timestamp);
-        bb.putShort(curTemp);
-        bb.putShort(curHumid);
-        bb.put(st);
-        bb.put((byte)(neededTempValue & 0xFF));
-        bb.put((byte)(neededHumidValue & 0xFF));
-        bb.put(er);
-
-        return bb.array();
+        bb.putLong(offset + TIMESTAMP, state.timestamp);
+        bb.putShort(offset + CUR_TEMP, curTemp);
+        bb.putShort(offset + CUR_HUMID, curHumid);
+        bb.put(offset + ST, st);
+        bb.put(offset + NEEDED_TEMP, (byte)(neededTempValue & 0xFF));
+        bb.put(offset + NEEDED_HUMID, (byte)(neededHumidValue & 0xFF));
+        bb.put(offset + ER, er);
     }
 
-    public ArchiveRecord getLocalArchiveRecordFromBytes(byte[] buf) {
-        ArchiveRecord record = new ArchiveRecord();
+    /* Fills record from data at offset of bb, allocates nothing */
+    public static void decodeRecord(ByteBuffer bb, int offset, ArchiveRecord record) {
+        byte st = bb.get(offset + ST);
 
-        record.timestamp = ByteBuffer.wrap(buf, TIMESTAMP, TIMESTAMP_LEN).getLong();
-        record.currentTemperature
-                = ByteBuffer.wrap(buf, CUR_TEMP, CUR_TEMP_LEN).getShort() / 256.0f;
-        record.currentHumidity
-                = ByteBuffer.wrap(buf, CUR_HUMID, CUR_HUMID_LEN).getShort() / 256.0f;
-        record.neededTemperature
-                = ((float) buf[NEEDED_TEMP] + 360) / 10.0f;
-        record.neededHumidity = buf[NEEDED_HUMID];
+        record.timestamp = bb.getLong(offset + TIMESTAMP);
+        record.currentTemperature = bb.getShort(offset + CUR_TEMP) / 256.0f;
+        record.currentHumidity = bb.getShort(offset + CUR_HUMID) / 256.0f;
+        record.neededTemperature = ((float) bb.get(offset + NEEDED_TEMP) + 360) / 10.0f;
+        record.neededHumidity = bb.get(offset + NEEDED_HUMID);
 
-        record.heater = ((buf[ST] & ST_HEATER) == ST_HEATER) ? 1 : 0;
-        record.wetter = ((buf[ST] & ST_WETTER) == ST_WETTER) ? 1 : 0;
+        record.heater = ((st & ST_HEATER) == ST_HEATER) ? 1 : 0;
+        record.wetter = ((st & ST_WETTER) == ST_WETTER) ? 1 : 0;
 
-        switch (buf[ST] & ST_CHAMBER) {
+        switch (st & ST_CHAMBER) {
             case ST_CHAMBER_LEFT:
                 record.chamber = IncubatorState.CHAMBER_LEFT;
                 break;
-            case ST_CHAMBER_NEUTRAL:
-                record.chamber = IncubatorState.CHAMBER_NEUTRAL;
-                break;
             case ST_CHAMBER_UNDEF:
             case ST_CHAMBER_RIGHT:
                 record.chamber = IncubatorState.CHAMBER_RIGHT;
@@ -190,48 +337,452 @@ public class Archiver {
             case ST_CHAMBER_ERROR:
                 record.chamber = IncubatorState.CHAMBER_ERROR;
                 break;
+            default:
+                record.chamber = IncubatorState.CHAMBER_NEUTRAL;
+                break;
         }
+    }
 
+    public byte[] getLocalArchiveRecord(IncubatorState state, IncubatorConfig cfg) {
+        byte[] buf = new byte[RECORD_SIZE];
+        encodeRecord(state, cfg, ByteBuffer.wrap(buf), 0);
+        return buf;
+    }
+
+    public ArchiveRecord getLocalArchiveRecordFromBytes(byte[] buf) {
+        ArchiveRecord record = new ArchiveRecord();
+        decodeRecord(ByteBuffer.wrap(buf), 0, record);
         return record;
     }
 
-    public ArchiveRecord[] getLocalArchiveRecords(long mintime)  {
-        ArrayList<ArchiveRecord> alResult = new ArrayList<>();
+    public ArchiveRecord[] getLocalArchiveRecords(long mintime) {
+        return getLocalArchiveRecords(mintime, Long.MAX_VALUE);
+    }
+
+    /*
+     * Streams records of [mintime, maxtime) in batches, caller must close the cursor.
+     * Cursors, statistics and export read segment files of flat store.
+     */
+    public ArchiveCursor openLocalArchiveCursor(long mintime, long maxtime, int batchSize)
+            throws IOException {
+        flushLocalArchive();
+        return new ArchiveCursor(getLocalArchiveSegments().getSegments(mintime, maxtime),
+                mintime, maxtime, batchSize);
+    }
+
+    public ArchiveCursor openLocalArchiveCursor(long mintime, long maxtime)
+            throws IOException {
+        return openLocalArchiveCursor(mintime, maxtime, ArchiveCursor.DEFAULT_BATCH_SIZE);
+    }
 
-        File archive = getLocalArchiveFile();
-        archive.setReadable(true);
+    public ArchiveSeries getLocalArchiveSeries(long mintime, long maxtime) {
+        flushLocalArchive();
 
         try {
-            FileInputStream istream = new FileInputStream(archive);
-            byte[] buf = new byte[RECORD_SIZE];
+            return getLocalArchiveStore().query(mintime, maxtime);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public synchronized ArchiveTail getLocalArchiveTail() throws IOException {
+        if (tail == null)
+            tail = ArchiveTail.open(new File(context.getFilesDir(), getNamespaceDirectory()));
+        return tail;
+    }
+
+    /*
+     * Live view of recent records. Read from memory when the tail has seen the
+     * whole range, otherwise falls back to getLocalArchiveSeries, which reads
+     * the store. Records still in write queue are not drawn until written.
+     */
+    public ArchiveSeries getRecentArchiveSeries(long mintime, long maxtime) {
+        try {
+            ArchiveSeries result = getLocalArchiveTail().query(mintime, maxtime);
+            if (result != null)
+                return result;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return getLocalArchiveSeries(mintime, maxtime);
+    }
+
+    /* Same as getRecentArchiveSeries for events, falls back to flag index */
+    public ArchiveEvent[] getRecentArchiveEvents(String expression, long mintime, long maxtime) {
+        try {
+            ArchiveEvent[] result = getLocalArchiveTail().findEvents(
+                    ArchiveEventExpression.parse(expression), mintime, maxtime);
+            if (result != null)
+                return result;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return getLocalArchiveEvents(expression, mintime, maxtime);
+    }
 
-            ArchiveRecord record;
+    public synchronized ArchiveCycles getLocalArchiveCycleIndex() throws IOException {
+        if (cycles == null)
+            cycles = ArchiveCycles.open(getLocalArchiveSegments().getDirectory());
+        return cycles;
+    }
+
+    /* Incubation cycles seen while archiving, in order of start */
+    public List<ArchiveCycles.Cycle> getLocalArchiveCycles() {
+        flushLocalArchive();
+
+        try {
+            return getLocalArchiveCycleIndex().getCycles();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            while (istream.read(buf) != -1) {
-                record = getLocalArchiveRecordFromBytes(buf);
+    /*
+     * Records of [fromElapsed, toElapsed) of incubation time in last count cycles,
+     * current cycle first. Timestamps are shifted to milliseconds since cycle start,
+     * so that series of different cycles can be drawn over each other.
+     */
+    public ArchiveSeries[] getLocalArchiveCycleSeries(int count, long fromElapsed, long toElapsed) {
+        flushLocalArchive();
 
-                if (record.timestamp < mintime)
+        try {
+            List<ArchiveCycles.Cycle> all = getLocalArchiveCycleIndex().getCycles();
+            ArchiveStore target = getLocalArchiveStore();
+            ArchiveSeries[] result = new ArchiveSeries[Math.min(count, all.size())];
+
+            for (int i = 0; i < result.length; i++) {
+                ArchiveCycles.Cycle cycle = all.get(all.size() - 1 - i);
+                long mintime = cycle.start + fromElapsed;
+                long maxtime = Math.min(cycle.start + toElapsed, cycle.end);
+
+                result[i] = (maxtime > mintime)
+                        ? target.query(mintime, maxtime) : new ArchiveSeries();
+                result[i].offsetTimestamps(-cycle.start);
+            }
+            return result;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public long getLocalArchiveCount(long mintime, long maxtime) {
+        flushLocalArchive();
+
+        try {
+            return getLocalArchiveStore().count(mintime, maxtime);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /* Streams [mintime, maxtime) to out, returns number of records or -1 if cancelled */
+    public long exportLocalArchive(long mintime, long maxtime, int format, OutputStream out,
+                                   ArchiveExporter.Listener listener) throws IOException {
+        List<ArchiveSegments.Segment> segments =
+                getLocalArchiveSegments().getSegments(mintime, maxtime);
+        long spanStart = segments.isEmpty() ? mintime : segments.get(0).start;
+        long spanEnd = segments.isEmpty() ? maxtime : Math.min(
+                segments.get(segments.size() - 1).end, System.currentTimeMillis());
+
+        ArchiveCursor cursor = openLocalArchiveCursor(mintime, maxtime,
+                ArchiveExporter.CHUNK_RECORDS);
+        try {
+            return new ArchiveExporter(mintime, maxtime, format)
+                    .export(cursor, spanStart, spanEnd, out, listener);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public ArchiveRecord[] getLocalArchiveRecords(long mintime, long maxtime) {
+        ArchiveSeries series = getLocalArchiveSeries(mintime, maxtime);
+        return (series != null) ? series.toRecords() : null;
+    }
+
+    /* Converts sealed v1 segments to format v2, returns number of converted segments */
+    public int migrateLocalArchiveToV2() {
+        int count = 0;
+
+        try {
+            long sealed = System.currentTimeMillis() - V2_MIGRATION_DELAY;
+            for (ArchiveSegments.Segment segment
+                    : getLocalArchiveSegments().getSegments(Long.MIN_VALUE, sealed)) {
+                if (segment.end > sealed)
                     continue;
 
-                alResult.add(record);
+                /* Any writer of the process may still hold segment, as fleet writer does */
+                synchronized (migrationLock) {
+                    if (!segment.file.exists() || !ArchiveCommits.beginSeal(segment.file))
+                        continue;
+                    try {
+                        ArchiveColumns.migrate(segment.file);
+                    } finally {
+                        ArchiveCommits.endSeal(segment.file);
+                    }
+                }
+                count++;
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-            ArchiveRecord[] result = new ArchiveRecord[alResult.size()];
-            alResult.toArray(result);
-            return result;
+        return count;
+    }
+
+    /* Compactor of current namespace with default retention policy */
+    public ArchiveCompactor getLocalArchiveCompactor() throws IOException {
+        return new ArchiveCompactor(getLocalArchiveSegments());
+    }
+
+    /*
+     * Converts sealed segments to v2, then downsamples cold ones by policy of
+     * compactor. Returns number of downsampled segments.
+     */
+    public int compactLocalArchive(ArchiveCompactor compactor) {
+        migrateLocalArchiveToV2();
+        if (compactor.isCancelled())
+            return 0;
+
+        try {
+            synchronized (migrationLock) {
+                return compactor.compact(System.currentTimeMillis());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /* Null until every tier is built, see rebuildLocalArchiveRollups */
+    private synchronized ArchiveRollup[] getLocalArchiveRollups() throws IOException {
+        if (rollups == null) {
+            ArchiveSegments segments = getLocalArchiveSegments();
+            ArchiveRollup[] result = new ArchiveRollup[ArchiveRollup.TIER_WIDTHS.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = ArchiveRollup.open(segments, ArchiveRollup.TIER_WIDTHS[i]);
+                if (result[i] == null)
+                    return null;
+            }
+            rollups = result;
+        }
+        return rollups;
+    }
+
+    /*
+     * Builds missing rollup tiers from whole archive, which takes long after
+     * upgrade, so it is called on a background thread. Tiers are used from then on.
+     */
+    public void rebuildLocalArchiveRollups() {
+        flushLocalArchive();
+
+        try {
+            ArchiveSegments segments = getLocalArchiveSegments();
+            long[] widths = ArchiveRollup.TIER_WIDTHS;
+            File[] built = new File[widths.length];
+            for (int i = 0; i < widths.length; i++) {
+                if (!ArchiveRollup.exists(segments, widths[i]))
+                    built[i] = ArchiveRollup.build(segments, widths[i], Long.MIN_VALUE);
+            }
+            installLocalArchiveRollups(segments, built);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Records written meanwhile are committed first, so that tiers catch up with them */
+    private synchronized void installLocalArchiveRollups(ArchiveSegments segments, File[] built)
+            throws IOException {
+        flushLocalArchiveStore();
+        for (int i = 0; i < built.length; i++) {
+            if (built[i] != null)
+                ArchiveRollup.install(segments, ArchiveRollup.TIER_WIDTHS[i], built[i]);
+        }
+    }
+
+    /* Coarsest rollup width giving at least minPoints buckets, 0 if raw records are needed */
+    public long getRollupWidth(long mintime, long maxtime, int minPoints) {
+        try {
+            if (getLocalArchiveRollups() == null)
+                return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+
+        for (int i = ArchiveRollup.TIER_WIDTHS.length - 1; i >= 0; i--) {
+            long width = ArchiveRollup.TIER_WIDTHS[i];
+            if ((maxtime - mintime) / width >= minPoints)
+                return width;
+        }
+        return 0;
+    }
+
+    public ArchiveBucket[] getLocalArchiveBuckets(long width, long mintime, long maxtime) {
+        try {
+            ArchiveRollup[] tiers = getLocalArchiveRollups();
+            if (tiers == null)
+                return null;
+            for (ArchiveRollup rollup : tiers) {
+                if (rollup.getWidth() == width)
+                    return rollup.getBuckets(mintime, maxtime);
+            }
+            return null;
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         }
     }
 
-    public ArchiveRecord[] getCloudArchiveRecords(long mintime) {
+    public ArchiveStats getLocalArchiveStats(long mintime, long maxtime) {
+        return getLocalArchiveStats(mintime, maxtime,
+                ArchiveStatistics.DEFAULT_TEMP_TOLERANCE, ArchiveStatistics.DEFAULT_HUMID_TOLERANCE);
+    }
+
+    /* Tolerances are in degrees and percents around needed values */
+    public ArchiveStats getLocalArchiveStats(long mintime, long maxtime,
+                                             float tempTolerance, float humidTolerance) {
+        flushLocalArchive();
+
+        try {
+            ArchiveStatistics statistics = new ArchiveStatistics(mintime, maxtime,
+                    ArchiveStatistics.DEFAULT_MAX_GAP, tempTolerance, humidTolerance);
+            return statistics.compute(getLocalArchiveSegments().getSegments(mintime, maxtime));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /* Intervals where flag expression such as "OVERHEAT OR CHAMBER_ERROR" held */
+    public ArchiveEvent[] getLocalArchiveEvents(String expression, long mintime, long maxtime) {
+        flushLocalArchive();
+
+        try {
+            return ArchiveFlagIndex.findEvents(
+                    getLocalArchiveSegments().getSegments(mintime, maxtime),
+                    ArchiveEventExpression.parse(expression), mintime, maxtime);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /* Drops whole segments older than time, never rewrites files */
+    public int deleteLocalArchiveBefore(long time) {
+        try {
+            return getLocalArchiveSegments().deleteBefore(time);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /* Session over segments sealed as for migration, they are converted first */
+    private ArchiveSync openLocalArchiveSync() throws IOException {
+        flushLocalArchive();
+        migrateLocalArchiveToV2();
+        return new ArchiveSync(getLocalArchiveSegments(),
+                System.currentTimeMillis() - V2_MIGRATION_DELAY);
+    }
+
+    /* Built rollup tiers are rebuilt from earliest merged record on */
+    private int mergeLocalArchiveSync(ArchiveSync sync) throws IOException {
+        synchronized (migrationLock) {
+            int added = sync.merge();
+            if (added == 0)
+                return 0;
+
+            ArchiveSegments segments = getLocalArchiveSegments();
+            long[] widths = ArchiveRollup.TIER_WIDTHS;
+            File[] built = new File[widths.length];
+            for (int i = 0; i < widths.length; i++) {
+                if (ArchiveRollup.exists(segments, widths[i]))
+                    built[i] = ArchiveRollup.build(segments, widths[i], sync.getMergedFrom());
+            }
+            installLocalArchiveRollups(segments, built);
+            return added;
+        }
+    }
+
+    /*
+     * Syncs sealed archive with peer connected to socket, each side gets
+     * records it lacks. Returns number of records added here or -1 on failure.
+     */
+    public int syncLocalArchive(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+
+            ArchiveSync sync = openLocalArchiveSync();
+            ArchiveSync.writeHello(out, incubator);
+            sync.sync(in, out, Long.MIN_VALUE);
+            return mergeLocalArchiveSync(sync);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /*
+     * Answers peer connected to socket, archive of incubator asked by peer is
+     * used. Peer cannot register new incubators, unknown ones are refused.
+     */
+    public int serveLocalArchiveSync(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+
+            String address = ArchiveSync.readHello(in);
+            if (address.isEmpty() || ArchiveRegistry.normalize(address).equals(incubator))
+                return serveLocalArchiveSync(in, out);
+            if (getLocalArchiveRegistry().find(address) == null)
+                throw new IOException("Unknown incubator " + address);
+
+            Archiver archiver = new Archiver(context, address);
+            try {
+                return archiver.serveLocalArchiveSync(in, out);
+            } finally {
+                archiver.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    private int serveLocalArchiveSync(DataInputStream in, DataOutputStream out)
+            throws IOException {
+        ArchiveSync sync = openLocalArchiveSync();
+        sync.serve(in, out);
+        return mergeLocalArchiveSync(sync);
+    }
+
+    private ArchiveRequest getCloudArchiveRequest() {
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl("http://" + cloudArchiveAddress)
                 .addConverterFactory(GsonConverterFactory.create())
                 .build();
-        ArchiveRequest archiveRequest = retrofit.create(ArchiveRequest.class);
-        Call<ArchiveRecord[]> call = archiveRequest.getArchive(mintime);
+        return retrofit.create(ArchiveRequest.class);
+    }
+
+    public ArchiveRecord[] getCloudArchiveRecords(long mintime) {
+        return getCloudArchiveRecords(getCloudArchiveRequest().getArchive(mintime));
+    }
+
+    /* Server may ignore maxtime and return records up to now */
+    public ArchiveRecord[] getCloudArchiveRecords(long mintime, long maxtime) {
+        return getCloudArchiveRecords(getCloudArchiveRequest().getArchive(mintime, maxtime));
+    }
+
+    private ArchiveRecord[] getCloudArchiveRecords(final Call<ArchiveRecord[]> call) {
         Future<ArchiveRecord[]> future = executor.submit(new Callable<ArchiveRecord[]>() {
 
             @Override
@@ -249,12 +800,257 @@ public class Archiver {
         }
     }
 
-    public void writeToLocalArchive(IncubatorState state, IncubatorConfig cfg) throws IOException {
-        File archive = getLocalArchiveFile();
+    public ArchiveSeries getCloudArchiveSeries(long mintime) {
+        ArchiveRecord[] records = getCloudArchiveRecords(mintime);
+        if (records == null)
+            return null;
+
+        ArchiveSeries result = new ArchiveSeries(records.length);
+        for (ArchiveRecord record : records)
+            result.addRecord(record);
+        return result;
+    }
+
+    public ArchiveSeries getCloudArchiveSeries(long mintime, long maxtime) {
+        ArchiveRecord[] records = getCloudArchiveRecords(mintime, maxtime);
+        if (records == null)
+            return null;
+
+        ArchiveSeries result = new ArchiveSeries(records.length);
+        for (ArchiveRecord record : records) {
+            if (record.timestamp >= mintime && record.timestamp < maxtime)
+                result.addRecord(record);
+        }
+        return result;
+    }
+
+    /*
+     * Local records of [mintime, maxtime) with gaps longer than HYBRID_MAX_GAP
+     * or a few widths of downsampled segments filled from cloud archive. Only
+     * gaps are requested from cloud, closest ones together when there are more
+     * than ArchiveMerger.MAX_GAP_REQUESTS of them. Gaps whose request fails
+     * stay empty.
+     */
+    public ArchiveSeries getHybridArchiveSeries(long mintime, long maxtime) {
+        try {
+            List<long[]> gaps;
+            flushLocalArchive();
+            List<ArchiveSegments.Segment> segments =
+                    getLocalArchiveSegments().getSegments(mintime, maxtime);
+            ArchiveCursor cursor = new ArchiveCursor(segments, mintime, maxtime,
+                    ArchiveCursor.DEFAULT_BATCH_SIZE);
+            try {
+                gaps = ArchiveMerger.findGaps(new ArchiveMerger.CursorSource(cursor),
+                        segments, mintime, maxtime, HYBRID_MAX_GAP);
+            } finally {
+                cursor.close();
+            }
+
+            ArrayList<ArchiveMerger.Source> sources = new ArrayList<>();
+            for (ArchiveSeries cloud : getCloudGapSeries(gaps))
+                sources.add(new ArchiveMerger.SeriesSource(cloud, gaps));
+
+            /* Second pass over local data, so that it is never held in memory twice */
+            cursor = openLocalArchiveCursor(mintime, maxtime);
+            try {
+                sources.add(0, new ArchiveMerger.CursorSource(cursor));
+                ArchiveSeries result = new ArchiveSeries();
+                ArchiveMerger.merge(sources, result);
+                return result;
+            } finally {
+                cursor.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /*
+     * Buckets of width of [mintime, maxtime) taken from local rollup tier,
+     * buckets missing for longer than HYBRID_MAX_GAP are made of cloud
+     * records. Returns null if there is no such tier.
+     */
+    public ArchiveBucket[] getHybridArchiveBuckets(long width, long mintime, long maxtime) {
+        ArchiveBucket[] local = getLocalArchiveBuckets(width, mintime, maxtime);
+        if (local == null)
+            return null;
+
+        try {
+            List<long[]> gaps = ArchiveMerger.findBucketGaps(local, width,
+                    mintime, maxtime, HYBRID_MAX_GAP);
+            if (gaps.isEmpty())
+                return local;
+
+            ArrayList<ArchiveMerger.Source> sources = new ArrayList<>();
+            for (ArchiveSeries cloud : getCloudGapSeries(gaps))
+                sources.add(new ArchiveMerger.SeriesSource(cloud, gaps));
+            ArchiveSeries records = new ArchiveSeries();
+            ArchiveMerger.merge(sources, records);
+
+            /* Gaps are made of whole buckets, so cloud ones never meet local ones */
+            ArrayList<ArchiveBucket> result = new ArrayList<>(local.length + records.size());
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            ArchiveBucket bucket = null;
+            int next = 0;
+            for (int i = 0; i < records.size(); i++) {
+                long timestamp = records.getTimestamp(i);
+                if (bucket == null || timestamp >= bucket.timestamp + width) {
+                    bucket = new ArchiveBucket();
+                    bucket.timestamp = timestamp - ((timestamp % width) + width) % width;
+                    bucket.duration = width;
+                    while (next < local.length && local[next].timestamp < bucket.timestamp)
+                        result.add(local[next++]);
+                    result.add(bucket);
+                }
+                records.getRecord(i, record, 0);
+                bucket.add(record, 0);
+            }
+            while (next < local.length)
+                result.add(local[next++]);
+
+            ArchiveBucket[] buckets = new ArchiveBucket[result.size()];
+            result.toArray(buckets);
+            return buckets;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return local;
+        }
+    }
+
+    /*
+     * Cloud records of gaps, closest gaps are requested together. Server
+     * ignoring maxtime answers with all records after mintime, which cover
+     * later gaps too, so those are not requested again.
+     */
+    private List<ArchiveSeries> getCloudGapSeries(List<long[]> gaps) {
+        ArrayList<ArchiveSeries> result = new ArrayList<>();
+
+        for (long[] request : ArchiveMerger.coalesce(gaps, ArchiveMerger.MAX_GAP_REQUESTS)) {
+            ArchiveRecord[] records = getCloudArchiveRecords(request[0], request[1]);
+            if (records == null)
+                continue;
+
+            ArchiveSeries series = new ArchiveSeries(records.length);
+            boolean complete = false;
+            for (ArchiveRecord record : records) {
+                if (record.timestamp < request[0])
+                    continue;
+                if (record.timestamp >= request[1])
+                    complete = true;
+                series.addRecord(record);
+            }
+            result.add(series);
+            if (complete)
+                break;
+        }
+        return result;
+    }
+
+    /* Never blocks on disk, record is dropped if write queue is full */
+    public boolean writeToLocalArchive(IncubatorState state, IncubatorConfig cfg) {
+        return getWriteQueue().offer(state, cfg);
+    }
 
-        PrintStream ps = new PrintStream(
-                new FileOutputStream(archive, true)
-        );
-        ps.write(getLocalArchiveRecord(state, cfg));
+    private synchronized void persistRecord(ByteBuffer record, int offset, long cycleStart)
+            throws IOException {
+        ArchiveRollup[] tiers = getLocalArchiveRollups();
+        ArchiveTail recent = getLocalArchiveTail();
+        getLocalArchiveCycleIndex().onRecord(cycleStart);
+
+        int kept = filter.offer(record, offset);
+        if (kept == ArchiveFilter.DUPLICATE)
+            return;
+        writeFiltered(kept);
+        recent.add(record, offset);
+
+        /* Rollups see every distinct sample, not only kept ones */
+        if (tiers == null)
+            return;
+        for (ArchiveRollup rollup : tiers)
+            rollup.add(record, offset);
+    }
+
+    private void writeFiltered(int count) throws IOException {
+        if (count <= 0)
+            return;
+
+        ArchiveStore target = getLocalArchiveStore();
+        ByteBuffer output = filter.getOutput();
+        for (int i = 0; i < count; i++)
+            target.append(output, i * RECORD_SIZE);
+    }
+
+    private void flushLocalArchiveRollups() throws IOException {
+        if (rollups == null)
+            return;
+
+        for (ArchiveRollup rollup : rollups)
+            rollup.flush();
+    }
+
+    private void drainWriteQueue() {
+        ArchiveQueue current;
+        synchronized (this) {
+            current = queue;
+        }
+        if (current != null)
+            current.drain();
+    }
+
+    /* Makes every record written before the call visible to readers */
+    public void flushLocalArchive() {
+        drainWriteQueue();
+        flushLocalArchiveStore();
+    }
+
+    private synchronized void flushLocalArchiveStore() {
+        try {
+            writeFiltered(filter.flush());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (store == null)
+            return;
+
+        try {
+            store.flush();
+            flushLocalArchiveRollups();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void close() {
+        ArchiveQueue current;
+        synchronized (this) {
+            current = queue;
+            queue = null;
+        }
+        if (current != null)
+            current.close();
+
+        closeLocalArchiveStore();
+        executor.shutdown();
+    }
+
+    private synchronized void closeLocalArchiveStore() {
+        try {
+            writeFiltered(filter.flush());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (store == null)
+            return;
+
+        try {
+            store.close();
+            flushLocalArchiveRollups();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        store = null;
     }
 }
@@ -0,0 +1,142 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Archive in daily segment files written by ArchiveWriter. Segments are
+ * searched by time, so records going back in time, as after a clock step,
+ * are dropped instead of being appended out of order.
+ */
+public class FlatArchiveStore implements ArchiveStore {
+    private final ArchiveSegments segments;
+    private final int commitRecords;
+    private final long commitInterval;
+
+    private ArchiveWriter writer;
+    private ArchiveSegments.Segment writerSegment;
+    private long recordsDropped = 0;
+
+    FlatArchiveStore(ArchiveSegments segments) {
+        this(segments, ArchiveWriter.DEFAULT_COMMIT_RECORDS, ArchiveWriter.DEFAULT_COMMIT_INTERVAL);
+    }
+
+    FlatArchiveStore(ArchiveSegments segments, int commitRecords, long commitInterval) {
+        this.segments = segments;
+        this.commitRecords = commitRecords;
+        this.commitInterval = commitInterval;
+    }
+
+    public ArchiveSegments getSegments() {
+        return segments;
+    }
+
+    /* Returns writer taking record of timestamp, null if record must be dropped */
+    private ArchiveWriter getWriter(long timestamp) throws IOException {
+        if (writer != null) {
+            if (writerSegment.contains(timestamp))
+                return (timestamp >= writer.getLastTimestamp()) ? writer : null;
+            /* Earlier segments are never reopened while writing */
+            if (timestamp < writerSegment.start)
+                return null;
+
+            writer.close();
+            writer = null;
+            writerSegment = null;
+        }
+
+        /* Converted segments are sealed */
+        ArchiveSegments.Segment segment = segments.getSegmentFor(timestamp);
+        if (ArchiveColumns.getV2File(segment.file).exists())
+            return null;
+
+        ArchiveWriter opened = new ArchiveWriter(segment.file, commitRecords, commitInterval);
+        if (timestamp < opened.getLastTimestamp()) {
+            opened.close();
+            return null;
+        }
+        writer = opened;
+        writerSegment = segment;
+        return writer;
+    }
+
+    @Override
+    public synchronized void append(ByteBuffer bb, int offset) throws IOException {
+        ArchiveWriter target = getWriter(bb.getLong(offset + Archiver.TIMESTAMP));
+        if (target == null) {
+            recordsDropped++;
+            return;
+        }
+        target.append(bb, offset);
+    }
+
+    /* Records dropped for going back in time */
+    public synchronized long getRecordsDropped() {
+        return recordsDropped;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (writer != null)
+            writer.flush();
+    }
+
+    public ArchiveCursor openCursor(long mintime, long maxtime, int batchSize) {
+        return new ArchiveCursor(segments.getSegments(mintime, maxtime),
+                mintime, maxtime, batchSize);
+    }
+
+    @Override
+    public ArchiveSeries query(long mintime, long maxtime) throws IOException {
+        ArchiveSeries result = new ArchiveSeries();
+        ArchiveCursor cursor = openCursor(mintime, maxtime, ArchiveCursor.DEFAULT_BATCH_SIZE);
+        try {
+            while (cursor.nextBatch())
+                result.addAll(cursor.getBatch());
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    @Override
+    public long count(long mintime, long maxtime) throws IOException {
+        long result = 0;
+        ArchiveCursor cursor = openCursor(mintime, maxtime, ArchiveCursor.DEFAULT_BATCH_SIZE);
+        try {
+            while (cursor.nextBatch())
+                result += cursor.getBatch().size();
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /* Segments with their indexes, rollups are kept apart from the store */
+    @Override
+    public long getSize() {
+        long size = 0;
+        File[] files = segments.getDirectory().listFiles();
+        if (files == null)
+            return 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(ArchiveRollup.ROLLUP_EXTENSION))
+                size += file.length();
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer == null)
+            return;
+
+        try {
+            writer.close();
+        } finally {
+            writer = null;
+            writerSegment = null;
+        }
+    }
+}
@@ -36,6 +36,8 @@ import java.util.Date;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class IncubatorStateActivity extends AppCompatActivity {
     /* Incubator request constants */
@@ -179,6 +181,9 @@ public class IncubatorStateActivity extends AppCompatActivity {
     Archiver archiver;
     Requestor requestor;
 
+    /* Archive work blocking on disk, in order of requests */
+    private final ExecutorService archiveExecutor = Executors.newSingleThreadExecutor();
+
     private void writeToArchive() {
         try {
             archiver.writeToLocalArchive(state, cfg);
@@ -188,6 +193,44 @@ public class IncubatorStateActivity extends AppCompatActivity {
         }
     }
 
+    /* Replacing filter writes out its held records, so it is done on archive executor */
+    private void setArchiveErrorBound(final String value) {
+        archiveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    float bound = Float.parseFloat(value.trim().replace(',', '.'));
+                    archiver.setWriteFilter(bound, bound, ArchiveFilter.DEFAULT_MAX_INTERVAL);
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /* Converts sealed segments and builds missing rollups off the UI and writer threads */
+    private void prepareLocalArchive() {
+        archiveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                archiver.migrateLocalArchiveToV2();
+                archiver.rebuildLocalArchiveRollups();
+            }
+        });
+    }
+
+    /* Closing archive of previous incubator waits for its write queue */
+    private void switchLocalArchive(final String address) {
+        archiveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                archiver.setIncubator(address);
+            }
+        });
+        prepareLocalArchive();
+    }
+
     void updateCooler() {
         if (state.cooler) {
             switch (rotatePhase) {
@@ -447,11 +490,16 @@ public class IncubatorStateActivity extends AppCompatActivity {
         notificationManager =
                 (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 
-        archiver = new Archiver(getApplicationContext());
+        prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        incubatorAddress = prefs.getString("incubator_address", DEFAULT_INCUBATOR_ADDRESS);
+
+        archiver = new Archiver(getApplicationContext(), incubatorAddress);
+        prepareLocalArchive();
+        ArchiveCompactionService.schedule(getApplicationContext());
         requestor = new Requestor(getApplicationContext());
 
-        prefs = PreferenceManager.getDefaultSharedPreferences(this);
         manualRotationMode = prefs.getBoolean("manual_rotation_mode", false);
+        setArchiveErrorBound(prefs.getString("archive_error_bound", "0"));
         prefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
             @Override
             public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
@@ -460,6 +508,13 @@ public class IncubatorStateActivity extends AppCompatActivity {
                     manualRotationMode = sharedPreferences.getBoolean(key, false);
                     mode = CURRENT_STATE_MODE;
                     updateIncubator();
+                } else if (key.compareTo("incubator_address") == 0) {
+                    incubatorAddress = sharedPreferences.getString(
+                            key, DEFAULT_INCUBATOR_ADDRESS
+                    );
+                    switchLocalArchive(incubatorAddress);
+                } else if (key.compareTo("archive_error_bound") == 0) {
+                    setArchiveErrorBound(sharedPreferences.getString(key, "0"));
                 }
             }
         };
@@ -992,6 +1047,9 @@ public class IncubatorStateActivity extends AppCompatActivity {
 
     @Override
     protected void onDestroy() {
+        reqTimer.cancel();
+        archiveExecutor.shutdown();
+        archiver.close();
         super.onDestroy();
     }
 }
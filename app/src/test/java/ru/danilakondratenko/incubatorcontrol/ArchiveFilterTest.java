@@ -0,0 +1,148 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records dropped by the write filter must be restorable from kept ones
+ * by linear interpolation within the error bound, flags exactly.
+ */
+public class ArchiveFilterTest {
+    private static final int SAMPLES = 100000;
+    private static final long PERIOD = 2000L;
+
+    /* Samples as written by the activity: every sample twice, 0.1 steps */
+    private static ByteBuffer generate(Random random) {
+        ByteBuffer samples = ByteBuffer.allocate(SAMPLES * Archiver.RECORD_SIZE);
+
+        for (int i = 0; i < SAMPLES; i += 2) {
+            int offset = i * Archiver.RECORD_SIZE;
+            int n = i / 2;
+            double temp = Math.round(
+                    (37.7 + 0.3 * Math.sin(n / 900.0) + random.nextGaussian() * 0.03) * 10) / 10.0;
+            double humid = Math.round(
+                    (55 + 3 * Math.sin(n / 5000.0) + random.nextGaussian() * 0.05) * 10) / 10.0;
+            byte st = (Math.sin(n / 900.0) < 0) ? Archiver.ST_HEATER : Archiver.ST_ZERO;
+            st |= Archiver.ST_POWER;
+
+            /* Link outage leaves a gap */
+            long timestamp = 1600000000000L + n * PERIOD + ((n > 20000) ? 600000L : 0);
+
+            samples.putLong(offset + Archiver.TIMESTAMP, timestamp);
+            samples.putShort(offset + Archiver.CUR_TEMP, (short)(temp * 256));
+            samples.putShort(offset + Archiver.CUR_HUMID, (short)(humid * 256));
+            samples.put(offset + Archiver.ST, st);
+            samples.put(offset + Archiver.NEEDED_TEMP, (byte)(378 - 360));
+            samples.put(offset + Archiver.NEEDED_HUMID, (byte) 55);
+            samples.put(offset + Archiver.ER,
+                    (n % 7000 == 0) ? Archiver.ER_OVERHEAT : Archiver.ER_ZERO);
+
+            samples.putLong(offset + Archiver.RECORD_SIZE, samples.getLong(offset));
+            samples.putLong(offset + Archiver.RECORD_SIZE + 8, samples.getLong(offset + 8));
+        }
+
+        return samples;
+    }
+
+    private static ArchiveSeries filter(ArchiveFilter filter, ByteBuffer samples) {
+        ArchiveSeries kept = new ArchiveSeries();
+
+        for (int i = 0; i < SAMPLES; i++) {
+            int count = filter.offer(samples, i * Archiver.RECORD_SIZE);
+            for (int j = 0; j < count; j++)
+                kept.addRecord(filter.getOutput(), j * Archiver.RECORD_SIZE);
+        }
+        int count = filter.flush();
+        for (int j = 0; j < count; j++)
+            kept.addRecord(filter.getOutput(), j * Archiver.RECORD_SIZE);
+
+        return kept;
+    }
+
+    /* Returns maximum interpolation error in degrees or percents */
+    private static double check(ByteBuffer samples, ArchiveSeries kept) {
+        ByteBuffer a = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+        ByteBuffer b = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+        double maxError = 0;
+        int k = 0;
+
+        for (int i = 0; i < SAMPLES; i++) {
+            int offset = i * Archiver.RECORD_SIZE;
+            long timestamp = samples.getLong(offset + Archiver.TIMESTAMP);
+
+            while (k + 1 < kept.size() && kept.getTimestamp(k + 1) <= timestamp)
+                k++;
+            kept.getRecord(k, a, 0);
+            assertTrue(a.getLong(Archiver.TIMESTAMP) <= timestamp);
+
+            /* Flags hold until next kept record */
+            assertEquals(samples.getInt(offset + Archiver.ST), a.getInt(Archiver.ST));
+
+            if (a.getLong(Archiver.TIMESTAMP) == timestamp || k + 1 == kept.size()) {
+                assertEquals(samples.getLong(offset + 8), a.getLong(8));
+                continue;
+            }
+
+            kept.getRecord(k + 1, b, 0);
+            double f = (double)(timestamp - a.getLong(Archiver.TIMESTAMP))
+                    / (b.getLong(Archiver.TIMESTAMP) - a.getLong(Archiver.TIMESTAMP));
+            for (int index : new int[] { Archiver.CUR_TEMP, Archiver.CUR_HUMID }) {
+                double restored = a.getShort(index) + f * (b.getShort(index) - a.getShort(index));
+                maxError = Math.max(maxError,
+                        Math.abs(restored - samples.getShort(offset + index)) / 256.0);
+            }
+        }
+
+        return maxError;
+    }
+
+    @Test
+    public void errorIsBounded() {
+        ByteBuffer samples = generate(new Random(42));
+        int lastKept = SAMPLES;
+
+        for (float bound : new float[] { 0.0f, 0.05f, 0.1f, 0.2f, 0.5f }) {
+            ArchiveFilter filter = new ArchiveFilter(bound, bound);
+            ArchiveSeries kept = filter(filter, samples);
+            double maxError = check(samples, kept);
+
+            assertTrue(maxError <= bound + 1e-6);
+            assertEquals(SAMPLES / 2, filter.getDuplicatesDropped());
+            assertEquals(kept.size(), filter.getRecordsKept());
+
+            /* Wider bound never keeps more */
+            assertTrue(kept.size() <= lastKept);
+            lastKept = kept.size();
+        }
+    }
+
+    @Test
+    public void growthIsCutSeveralfold() {
+        ByteBuffer samples = generate(new Random(7));
+        ArchiveSeries kept = filter(new ArchiveFilter(0.1f, 0.1f), samples);
+
+        assertTrue(kept.size() * 4 < SAMPLES);
+    }
+
+    @Test
+    public void keptRecordsAreAtMostMaxIntervalApart() {
+        ByteBuffer samples = ByteBuffer.allocate(1000 * Archiver.RECORD_SIZE);
+        for (int i = 0; i < 1000; i++)
+            samples.putLong(i * Archiver.RECORD_SIZE + Archiver.TIMESTAMP, i * PERIOD);
+
+        ArchiveFilter filter = new ArchiveFilter(1.0f, 1.0f, 30000L);
+        long last = 0;
+        for (int i = 0; i < 1000; i++) {
+            int count = filter.offer(samples, i * Archiver.RECORD_SIZE);
+            for (int j = 0; j < count; j++) {
+                long timestamp = filter.getOutput().getLong(j * Archiver.RECORD_SIZE);
+                assertTrue(timestamp - last <= 30000L);
+                last = timestamp;
+            }
+        }
+    }
+}
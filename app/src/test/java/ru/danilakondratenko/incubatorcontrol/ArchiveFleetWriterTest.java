@@ -0,0 +1,105 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records going back in time are dropped by the fleet writer as by
+ * FlatArchiveStore, so that segments stay sorted and converted ones sealed.
+ */
+public class ArchiveFleetWriterTest {
+    private static final long DAY = 86400000L;
+    private static final long START = 1600041600000L; /* Day boundary */
+    private static final String ADDRESS = "10.0.0.1:80";
+
+    private static File createDirectory() throws IOException {
+        File dir = Files.createTempDirectory("fleet").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static void offer(ArchiveFleetWriter writer, long timestamp) {
+        ByteBuffer record = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+        record.putLong(Archiver.TIMESTAMP, timestamp);
+        record.putShort(Archiver.CUR_TEMP, (short)(37.7 * 256));
+        record.putShort(Archiver.CUR_HUMID, (short)(55 * 256));
+        record.put(Archiver.ST, Archiver.ST_POWER);
+        record.put(Archiver.NEEDED_TEMP, (byte)(377 - 360));
+        record.put(Archiver.NEEDED_HUMID, (byte) 55);
+        record.put(Archiver.ER, Archiver.ER_ZERO);
+        assertTrue(writer.offer(ADDRESS, record, 0));
+    }
+
+    private static ArchiveSegments getSegments(File filesDir) throws IOException {
+        ArchiveRegistry.Incubator incubator = ArchiveRegistry.open(filesDir).getIncubators().get(0);
+        return ArchiveSegments.open(new File(filesDir, incubator.directory), null);
+    }
+
+    private static long[] getTimestamps(ArchiveSegments segments) throws IOException {
+        ArchiveSeries series = new FlatArchiveStore(segments).query(Long.MIN_VALUE, Long.MAX_VALUE);
+        long[] result = new long[series.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = series.getTimestamp(i);
+        return result;
+    }
+
+    @Test
+    public void recordsGoingBackInTimeAreDropped() throws Exception {
+        File filesDir = createDirectory();
+        ArchiveFleetWriter writer = new ArchiveFleetWriter(filesDir);
+        try {
+            offer(writer, START + DAY + 20000);
+            offer(writer, START + DAY + 10000); /* Same segment, earlier */
+            offer(writer, START + 10000);       /* Earlier segment */
+            offer(writer, START + DAY + 30000);
+            writer.flush();
+
+            assertEquals(2, writer.getRecordsWritten());
+            assertEquals(2, writer.getRecordsDropped());
+            assertEquals(0, writer.getWriteErrors());
+        } finally {
+            writer.close();
+        }
+
+        assertArrayEquals(new long[] { START + DAY + 20000, START + DAY + 30000 },
+                getTimestamps(getSegments(filesDir)));
+    }
+
+    @Test
+    public void lateRecordOfConvertedSegmentIsDropped() throws Exception {
+        File filesDir = createDirectory();
+        ArchiveFleetWriter writer = new ArchiveFleetWriter(filesDir);
+        try {
+            offer(writer, START);
+            offer(writer, START + 10000);
+        } finally {
+            writer.close();
+        }
+
+        ArchiveSegments segments = getSegments(filesDir);
+        ArchiveColumns.migrate(segments.getSegmentFor(START).file);
+
+        /* Reopened writer knows nothing of the earlier segment but its v2 file */
+        writer = new ArchiveFleetWriter(filesDir);
+        try {
+            offer(writer, START + 20000);
+            offer(writer, START + DAY);
+            writer.flush();
+
+            assertEquals(1, writer.getRecordsWritten());
+            assertEquals(1, writer.getRecordsDropped());
+            assertEquals(0, writer.getWriteErrors());
+        } finally {
+            writer.close();
+        }
+
+        assertArrayEquals(new long[] { START, START + 10000, START + DAY },
+                getTimestamps(segments));
+    }
+}
@@ -0,0 +1,269 @@
+package ru.danilakondratenko.incubatorcontrol;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two archives with different gaps synced over a local socket must end with
+ * the same records, only differing blocks being sent. Downsampled days are
+ * left as they are. Malformed data of peer fails the session with IOException.
+ */
+public class ArchiveSyncTest {
+    private static final long DAY = ArchiveSync.DAY_WIDTH;
+    private static final long HOUR = ArchiveSync.BLOCK_WIDTH;
+    private static final long START = 1600041600000L; /* Day boundary */
+    private static final long PERIOD = 10000L;
+
+    private static File createDirectory() throws IOException {
+        File dir = Files.createTempDirectory("sync").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static void append(ArchiveStore store, long timestamp) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(Archiver.RECORD_SIZE);
+        double x = timestamp / 3600000.0;
+
+        record.putLong(Archiver.TIMESTAMP, timestamp);
+        record.putShort(Archiver.CUR_TEMP, (short)((37.7 + 0.3 * Math.sin(x)) * 256));
+        record.putShort(Archiver.CUR_HUMID, (short)((55 + 2 * Math.cos(x)) * 256));
+        record.put(Archiver.ST, (byte)(Archiver.ST_POWER | ((x % 2 < 1) ? Archiver.ST_HEATER : 0)));
+        record.put(Archiver.NEEDED_TEMP, (byte)(377 - 360));
+        record.put(Archiver.NEEDED_HUMID, (byte) 55);
+        record.put(Archiver.ER, Archiver.ER_ZERO);
+        store.append(record, 0);
+    }
+
+    /*
+     * Both archives cover 4 days. First one misses hours 5-8 of day 0,
+     * second one misses day 1 and has extra samples in hour 3 of day 2.
+     * Day 3 of second archive is downsampled.
+     */
+    private static ArchiveSegments createFirst() throws IOException {
+        ArchiveSegments segments = ArchiveSegments.open(createDirectory(), null);
+        FlatArchiveStore store = new FlatArchiveStore(segments);
+        for (long t = START; t < START + 4 * DAY; t += PERIOD) {
+            if (t >= START + 5 * HOUR && t < START + 9 * HOUR)
+                continue;
+            append(store, t);
+        }
+        store.close();
+
+        /* Sealed days are in v2 format, the rest is v1 */
+        ArchiveColumns.migrate(segments.getSegmentFor(START).file);
+        return segments;
+    }
+
+    private static ArchiveSegments createSecond() throws IOException {
+        ArchiveSegments segments = ArchiveSegments.open(createDirectory(), null);
+        FlatArchiveStore store = new FlatArchiveStore(segments);
+        for (long t = START; t < START + 4 * DAY; t += PERIOD) {
+            if (t >= START + DAY && t < START + 2 * DAY)
+                continue;
+            append(store, t);
+            if (t >= START + 2 * DAY + 3 * HOUR && t < START + 2 * DAY + 4 * HOUR)
+                append(store, t + PERIOD / 2);
+        }
+        store.close();
+
+        File last = segments.getSegmentFor(START + 3 * DAY).file;
+        ArchiveColumns.migrate(last);
+        new ArchiveCompactor(segments, new long[] { 0 }, new long[] { 60000L })
+                .compact(System.currentTimeMillis());
+        return segments;
+    }
+
+    private static TreeSet<Long> getTimestamps(ArchiveSegments segments, long mintime,
+                                               long maxtime) throws IOException {
+        TreeSet<Long> result = new TreeSet<>();
+        ArchiveSeries series = new FlatArchiveStore(segments).query(mintime, maxtime);
+        for (int i = 0; i < series.size(); i++)
+            result.add(series.getTimestamp(i));
+        return result;
+    }
+
+    private static int countBuckets(ArchiveRollup rollup, long mintime, long maxtime)
+            throws IOException {
+        int result = 0;
+        for (ArchiveBucket bucket : rollup.getBuckets(mintime, maxtime))
+            result += bucket.count;
+        return result;
+    }
+
+    /* Runs session between archives, client side is returned after both merged */
+    private static ArchiveSync sync(ArchiveSegments client, ArchiveSegments server,
+                                    final int[] serverAdded) throws Exception {
+        final ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final ArchiveSync serverSync = new ArchiveSync(server, System.currentTimeMillis());
+        final Exception[] failure = new Exception[1];
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = listener.accept();
+                    try {
+                        DataInputStream in = new DataInputStream(
+                                new BufferedInputStream(socket.getInputStream()));
+                        DataOutputStream out = new DataOutputStream(
+                                new BufferedOutputStream(socket.getOutputStream()));
+                        assertEquals("", ArchiveSync.readHello(in));
+                        serverSync.serve(in, out);
+                        serverAdded[0] = serverSync.merge();
+                    } finally {
+                        socket.close();
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        thread.start();
+
+        ArchiveSync clientSync = new ArchiveSync(client, System.currentTimeMillis());
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            ArchiveSync.writeHello(out, null);
+            clientSync.sync(in, out, Long.MIN_VALUE);
+            clientSync.merge();
+        } finally {
+            socket.close();
+        }
+
+        thread.join();
+        listener.close();
+        if (failure[0] != null)
+            throw failure[0];
+        return clientSync;
+    }
+
+    @Test
+    public void syncExchangesMissingBlocks() throws Exception {
+        ArchiveSegments first = createFirst();
+        ArchiveSegments second = createSecond();
+
+        TreeSet<Long> union = getTimestamps(first, START, START + 3 * DAY);
+        union.addAll(getTimestamps(second, START, START + 3 * DAY));
+        TreeSet<Long> firstCompacted = getTimestamps(first, START + 3 * DAY, START + 4 * DAY);
+        TreeSet<Long> secondCompacted = getTimestamps(second, START + 3 * DAY, START + 4 * DAY);
+        ArchiveRollup rollup = ArchiveRollup.install(first, HOUR,
+                ArchiveRollup.build(first, HOUR, Long.MIN_VALUE));
+
+        int[] serverAdded = new int[1];
+        ArchiveSync client = sync(first, second, serverAdded);
+
+        /* Hours 5-8 of day 0 and hour 3 of day 2 from server, whole day 1 and hour 3 to it */
+        assertEquals(5, client.getBlocksReceived());
+        assertEquals(2, client.getBlocksSent());
+        assertEquals(24 * 360, serverAdded[0]);
+
+        assertEquals(union, getTimestamps(first, START, START + 3 * DAY));
+        assertEquals(union, getTimestamps(second, START, START + 3 * DAY));
+        assertEquals(firstCompacted, getTimestamps(first, START + 3 * DAY, START + 4 * DAY));
+        assertEquals(secondCompacted, getTimestamps(second, START + 3 * DAY, START + 4 * DAY));
+
+        /* Rollup rebuilt from earliest merged record counts received ones */
+        assertEquals(START + 5 * HOUR, client.getMergedFrom());
+        ArchiveRollup.install(first, HOUR,
+                ArchiveRollup.build(first, HOUR, client.getMergedFrom()));
+        assertEquals(union.size(), countBuckets(rollup, START, START + 3 * DAY));
+
+        List<ArchiveSync.Node> firstDays = client.getDays(START, START + 3 * DAY);
+        List<ArchiveSync.Node> secondDays = new ArchiveSync(second, System.currentTimeMillis())
+                .getDays(START, START + 3 * DAY);
+        assertEquals(3, firstDays.size());
+        assertEquals(3, secondDays.size());
+        for (int i = 0; i < firstDays.size(); i++)
+            assertArrayEquals(firstDays.get(i).hash, secondDays.get(i).hash);
+
+        /* Nothing is left to exchange */
+        ArchiveSync again = sync(second, first, serverAdded);
+        assertEquals(0, again.getBlocksReceived());
+        assertEquals(0, again.getBlocksSent());
+        assertEquals(0, serverAdded[0]);
+    }
+
+    private static DataInputStream toInput(ByteArrayOutputStream bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    /* Serves single MSG_PUT of chunk, IOException is expected */
+    private static void servePut(byte[] chunk) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ArchiveSync.MSG_PUT);
+        out.writeLong(START);
+        out.writeLong(HOUR);
+        out.writeInt(chunk.length);
+        out.write(chunk);
+        out.writeInt(0);
+        out.writeByte(ArchiveSync.MSG_END);
+        out.flush();
+
+        ArchiveSync sync = new ArchiveSync(ArchiveSegments.open(createDirectory(), null),
+                System.currentTimeMillis());
+        try {
+            sync.serve(toInput(bytes), new DataOutputStream(new ByteArrayOutputStream()));
+            fail("Malformed chunk was accepted");
+        } catch (IOException e) {
+            /* Expected */
+        }
+    }
+
+    @Test
+    public void malformedDataOfPeerIsRejected() throws Exception {
+        /* Node count would not fit in memory */
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(START + DAY);
+        out.writeInt(Integer.MAX_VALUE);
+        out.flush();
+        ArchiveSync client = new ArchiveSync(ArchiveSegments.open(createDirectory(), null),
+                System.currentTimeMillis());
+        try {
+            client.sync(toInput(bytes), new DataOutputStream(new ByteArrayOutputStream()),
+                    Long.MIN_VALUE);
+            fail("Node count was accepted");
+        } catch (IOException e) {
+            /* Expected */
+        }
+
+        /* Record count of chunk above block size */
+        ByteBuffer chunk = ByteBuffer.allocate(ArchiveColumns.BLOCK_HEADER_SIZE);
+        chunk.putInt(ArchiveColumns.BH_COUNT, Integer.MAX_VALUE);
+        servePut(chunk.array());
+
+        /* Columns cut short */
+        ByteBuffer records = ByteBuffer.allocate(16 * Archiver.RECORD_SIZE);
+        for (int i = 0; i < 16; i++)
+            records.putLong(i * Archiver.RECORD_SIZE + Archiver.TIMESTAMP, START + i * PERIOD);
+        ByteBuffer encoded = ByteBuffer.allocate(ArchiveColumns.BLOCK_HEADER_SIZE
+                + 16 * Archiver.RECORD_SIZE * 2);
+        int length = ArchiveColumns.encodeBlock(records, 0, 16, encoded);
+        byte[] truncated = new byte[ArchiveColumns.BLOCK_HEADER_SIZE + 2];
+        System.arraycopy(encoded.array(), 0, truncated, 0, truncated.length);
+        assertTrue(length > truncated.length);
+        servePut(truncated);
+    }
+}